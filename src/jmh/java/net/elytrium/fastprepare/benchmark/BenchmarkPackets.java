@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2021 - 2023 Elytrium
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.elytrium.fastprepare.benchmark;
+
+import com.velocitypowered.proxy.protocol.StateRegistry;
+import com.velocitypowered.proxy.protocol.packet.PluginMessage;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import java.util.Random;
+import net.elytrium.fastprepare.PreparedPacket;
+import net.elytrium.fastprepare.PreparedPacketFactory;
+
+public final class BenchmarkPackets {
+
+  public static final String CHANNEL = "fastprepare:benchmark";
+  public static final int COMPRESSION_LEVEL = 6;
+  public static final int COMPRESSION_THRESHOLD = 256;
+
+  private BenchmarkPackets() {
+
+  }
+
+  public static PreparedPacketFactory createFactory(boolean enableCompression, boolean saveUncompressed) {
+    return createFactory(enableCompression, saveUncompressed, PooledByteBufAllocator.DEFAULT);
+  }
+
+  public static PreparedPacketFactory createFactory(boolean enableCompression, boolean saveUncompressed, ByteBufAllocator allocator) {
+    return new PreparedPacketFactory(PreparedPacket::new, StateRegistry.PLAY, enableCompression,
+        COMPRESSION_LEVEL, COMPRESSION_THRESHOLD, saveUncompressed, allocator);
+  }
+
+  // Half of the payload is random and the other half is repeated, so deflate has some real work to do.
+  public static ByteBuf createPayload(int size) {
+    Random random = new Random(size);
+    ByteBuf payload = PooledByteBufAllocator.DEFAULT.directBuffer(size);
+    for (int i = 0; i < size; i++) {
+      payload.writeByte((i & 1) == 0 ? random.nextInt(256) : i & 0x0F);
+    }
+
+    return payload;
+  }
+
+  // PluginMessage moves the reader index of its content while encoding, so every packet gets its own view.
+  public static PluginMessage createPacket(ByteBuf payload) {
+    return new PluginMessage(CHANNEL, payload.retainedDuplicate());
+  }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2021 - 2023 Elytrium
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.elytrium.fastprepare.benchmark;
+
+import com.velocitypowered.api.network.ProtocolVersion;
+import com.velocitypowered.proxy.protocol.packet.PluginMessage;
+import io.netty.buffer.ByteBuf;
+import java.util.concurrent.TimeUnit;
+import net.elytrium.fastprepare.PreparedPacketFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EncodeBenchmark {
+
+  @Param({"16", "65536"})
+  public int payloadSize;
+
+  @Param({"true", "false"})
+  public boolean enableCompression;
+
+  @Param({"MINECRAFT_1_7_2", "MINECRAFT_1_12_2", "MINECRAFT_1_19_3"})
+  public ProtocolVersion version;
+
+  private PreparedPacketFactory factory;
+  private ByteBuf payload;
+  private ByteBuf out;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    this.factory = BenchmarkPackets.createFactory(this.enableCompression, false);
+    this.payload = BenchmarkPackets.createPayload(this.payloadSize);
+    this.out = this.factory.getPreparedPacketAllocator().directBuffer(this.payloadSize * 2);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    this.factory.releaseThread(Thread.currentThread());
+    this.payload.release();
+    this.out.release();
+  }
+
+  @Benchmark
+  public int encodeId() {
+    PluginMessage packet = BenchmarkPackets.createPacket(this.payload);
+    try {
+      this.out.clear();
+      this.factory.encodeId(packet, this.out, this.version);
+      return this.out.readableBytes();
+    } finally {
+      packet.release();
+    }
+  }
+
+  @Benchmark
+  public int encodeSingle() {
+    PluginMessage packet = BenchmarkPackets.createPacket(this.payload);
+    ByteBuf buf;
+    try {
+      buf = this.factory.encodeSingle(packet, this.version);
+    } finally {
+      packet.release();
+    }
+
+    int size = buf.readableBytes();
+    buf.release();
+    return size;
+  }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2021 - 2023 Elytrium
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.elytrium.fastprepare.benchmark;
+
+import com.velocitypowered.api.network.ProtocolVersion;
+import com.velocitypowered.proxy.protocol.packet.PluginMessage;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.embedded.EmbeddedChannel;
+import java.util.concurrent.TimeUnit;
+import net.elytrium.fastprepare.PreparedPacket;
+import net.elytrium.fastprepare.PreparedPacketFactory;
+import net.elytrium.fastprepare.handler.PreparedPacketEncoder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EncoderBenchmark {
+
+  @Param({"16", "4096"})
+  public int payloadSize;
+
+  @Param({"true", "false"})
+  public boolean enableCompression;
+
+  @Param({"true", "false"})
+  public boolean shouldCopy;
+
+  @Param({"MINECRAFT_1_12_2", "MINECRAFT_1_19_3"})
+  public ProtocolVersion version;
+
+  private PreparedPacketFactory factory;
+  private PreparedPacket preparedPacket;
+  private EmbeddedChannel channel;
+  private ByteBuf payload;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    this.factory = BenchmarkPackets.createFactory(this.enableCompression, false);
+    this.payload = BenchmarkPackets.createPayload(this.payloadSize);
+    this.preparedPacket = this.factory.createPreparedPacket(ProtocolVersion.MINIMUM_VERSION, ProtocolVersion.MAXIMUM_VERSION)
+        .prepare((version) -> BenchmarkPackets.createPacket(this.payload))
+        .build();
+    this.channel = new EmbeddedChannel(new PreparedPacketEncoder(this.factory, this.version, this.shouldCopy));
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    this.channel.finishAndReleaseAll();
+    this.preparedPacket.release();
+    this.factory.releaseThread(Thread.currentThread());
+    this.payload.release();
+  }
+
+  @Benchmark
+  public int writePrepared() {
+    return this.writeAndRead(this.preparedPacket);
+  }
+
+  @Benchmark
+  public int writeDynamic() {
+    PluginMessage packet = BenchmarkPackets.createPacket(this.payload);
+    try {
+      return this.writeAndRead(packet);
+    } finally {
+      packet.release();
+    }
+  }
+
+  private int writeAndRead(Object msg) {
+    this.channel.writeOutbound(msg);
+    ByteBuf out = this.channel.readOutbound();
+    int size = out.readableBytes();
+    out.release();
+    return size;
+  }
+}
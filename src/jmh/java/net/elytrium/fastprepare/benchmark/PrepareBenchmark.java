@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2021 - 2023 Elytrium
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.elytrium.fastprepare.benchmark;
+
+import com.velocitypowered.api.network.ProtocolVersion;
+import io.netty.buffer.ByteBuf;
+import java.util.concurrent.TimeUnit;
+import net.elytrium.fastprepare.PreparedPacket;
+import net.elytrium.fastprepare.PreparedPacketFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PrepareBenchmark {
+
+  @Param({"1", "64"})
+  public int packetCount;
+
+  @Param({"16", "4096"})
+  public int payloadSize;
+
+  @Param({"true", "false"})
+  public boolean enableCompression;
+
+  @Param({"true", "false"})
+  public boolean saveUncompressed;
+
+  private PreparedPacketFactory factory;
+  private ByteBuf payload;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    this.factory = BenchmarkPackets.createFactory(this.enableCompression, this.saveUncompressed);
+    this.payload = BenchmarkPackets.createPayload(this.payloadSize);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    this.factory.releaseThread(Thread.currentThread());
+    this.payload.release();
+  }
+
+  @Benchmark
+  public int prepareAndBuild() {
+    PreparedPacket preparedPacket = this.prepare().build();
+    int size = preparedPacket.getPackets(ProtocolVersion.MAXIMUM_VERSION).readableBytes();
+    preparedPacket.release();
+    return size;
+  }
+
+  @Benchmark
+  public int build(PreparedState state) {
+    return state.preparedPacket.build().getPackets(ProtocolVersion.MAXIMUM_VERSION).readableBytes();
+  }
+
+  private PreparedPacket prepare() {
+    PreparedPacket preparedPacket = this.factory.createPreparedPacket(ProtocolVersion.MINIMUM_VERSION, ProtocolVersion.MAXIMUM_VERSION);
+    for (int i = 0; i < this.packetCount; i++) {
+      preparedPacket.prepare((version) -> BenchmarkPackets.createPacket(this.payload));
+    }
+
+    return preparedPacket;
+  }
+
+  // build() mutates the PreparedPacket, so a freshly prepared one is needed for every invocation.
+  @State(Scope.Thread)
+  public static class PreparedState {
+
+    private PreparedPacket preparedPacket;
+
+    @Setup(Level.Invocation)
+    public void setup(PrepareBenchmark benchmark) {
+      this.preparedPacket = benchmark.prepare();
+    }
+
+    @TearDown(Level.Invocation)
+    public void tearDown() {
+      this.preparedPacket.release();
+    }
+  }
+}
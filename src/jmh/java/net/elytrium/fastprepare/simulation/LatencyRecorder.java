@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2021 - 2023 Elytrium
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.elytrium.fastprepare.simulation;
+
+import java.util.Arrays;
+
+// Keeps every sample up to the capacity, so percentiles are exact for runs of a reasonable length.
+// Not thread-safe, every worker has its own recorder, they are merged after the run.
+public class LatencyRecorder {
+
+  private long[] samples;
+  private int size;
+  private long dropped;
+  private boolean sorted;
+
+  public LatencyRecorder(int capacity) {
+    this.samples = new long[capacity];
+  }
+
+  public void record(long nanos) {
+    if (this.size == this.samples.length) {
+      this.dropped++;
+      return;
+    }
+
+    this.samples[this.size++] = nanos;
+    this.sorted = false;
+  }
+
+  public void merge(LatencyRecorder other) {
+    long[] merged = Arrays.copyOf(this.samples, this.size + other.size);
+    System.arraycopy(other.samples, 0, merged, this.size, other.size);
+    this.samples = merged;
+    this.size = merged.length;
+    this.dropped += other.dropped;
+    this.sorted = false;
+  }
+
+  public long percentile(double percentile) {
+    if (this.size == 0) {
+      return 0;
+    }
+
+    if (!this.sorted) {
+      Arrays.sort(this.samples, 0, this.size);
+      this.sorted = true;
+    }
+
+    int index = (int) Math.ceil(percentile / 100.0 * this.size) - 1;
+    return this.samples[Math.max(0, Math.min(index, this.size - 1))];
+  }
+
+  public int getSize() {
+    return this.size;
+  }
+
+  public long getDropped() {
+    return this.dropped;
+  }
+}
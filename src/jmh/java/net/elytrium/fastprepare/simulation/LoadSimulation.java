@@ -0,0 +1,277 @@
+/*
+ * Copyright (C) 2021 - 2023 Elytrium
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.elytrium.fastprepare.simulation;
+
+import com.velocitypowered.api.network.ProtocolVersion;
+import com.velocitypowered.proxy.protocol.packet.PluginMessage;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import net.elytrium.fastprepare.PreparedPacket;
+import net.elytrium.fastprepare.PreparedPacketFactory;
+import net.elytrium.fastprepare.benchmark.BenchmarkPackets;
+
+// Simulates a join storm on a single machine: thousands of embedded player pipelines with FastPrepare injected,
+// mixed protocol versions, online and offline players, compression toggling, and prepared, dynamic and relayed raw packets.
+// Usage: ./gradlew loadSimulation -PsimulationArgs="--connections=5000 --rate=500000 --fused=true"
+// Limitation: every EmbeddedChannel has its own event loop, while Velocity shares a few loops between all the players.
+// With --pinned=true every connection takes its own hold of the packet, and all the sends of one worker run on one thread,
+// so the cross-loop refcount contention that pinning removes is not reproduced here, only its per-send overhead.
+public class LoadSimulation {
+
+  private static final int JOIN_PACKETS = 32;
+
+  private final int connections;
+  private final int threads;
+  private final int durationSeconds;
+  private final long rate;
+  private final int burst;
+  private final double preparedRatio;
+  private final double rawRatio;
+  private final int payloadSize;
+  private final int compressionToggleEvery;
+  private final boolean pinned;
+  private final boolean verifyFrames;
+  private final int velocityThreshold;
+  private final PreparedPacketFactory factory;
+  private final AtomicLong directMemoryPeak = new AtomicLong();
+  private final AtomicLong nioDirectMemoryPeak = new AtomicLong();
+  private PreparedPacket joinPacket;
+  private ByteBuf payload;
+  private ByteBuf rawPacket;
+
+  public LoadSimulation(Map<String, String> options) {
+    this.connections = Integer.parseInt(options.getOrDefault("connections", "2000"));
+    this.threads = Integer.parseInt(options.getOrDefault("threads", String.valueOf(Runtime.getRuntime().availableProcessors())));
+    this.durationSeconds = Integer.parseInt(options.getOrDefault("duration", "30"));
+    this.rate = Long.parseLong(options.getOrDefault("rate", "200000"));
+    this.burst = Integer.parseInt(options.getOrDefault("burst", "8"));
+    this.preparedRatio = Double.parseDouble(options.getOrDefault("preparedRatio", "0.5"));
+    this.payloadSize = Integer.parseInt(options.getOrDefault("payloadSize", "256"));
+    this.compressionToggleEvery = Integer.parseInt(options.getOrDefault("compressionToggleEvery", "1000"));
+    this.pinned = Boolean.parseBoolean(options.getOrDefault("pinned", "false"));
+    // A threshold different from the factory's one makes the fused encoder leave the packets to Velocity.
+    this.velocityThreshold = Integer.parseInt(options.getOrDefault("velocityThreshold", String.valueOf(BenchmarkPackets.COMPRESSION_THRESHOLD)));
+    this.factory = BenchmarkPackets.createFactory(Boolean.parseBoolean(options.getOrDefault("compression", "true")),
+        Boolean.parseBoolean(options.getOrDefault("saveUncompressed", "true")));
+    this.factory.setUseFusedEncoder(Boolean.parseBoolean(options.getOrDefault("fused", "false")));
+    this.factory.setBatchEncoderWrites(Boolean.parseBoolean(options.getOrDefault("batch", "false")));
+    // Raw packets are framed only by Velocity's frame encoders, which are used by the fused encoder alone.
+    this.rawRatio = this.factory.shouldUseFusedEncoder() ? Double.parseDouble(options.getOrDefault("rawRatio", "0.25")) : 0;
+    // Decodes everything the clients receive, costs some throughput.
+    this.verifyFrames = Boolean.parseBoolean(options.getOrDefault("verifyFrames", "true"));
+  }
+
+  public static void main(String[] args) throws InterruptedException {
+    Map<String, String> options = new HashMap<>();
+    for (String arg : args) {
+      if (!arg.startsWith("--") || !arg.contains("=")) {
+        throw new IllegalArgumentException("Arguments should look like --name=value, got " + arg);
+      }
+
+      options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+    }
+
+    new LoadSimulation(options).run();
+  }
+
+  public void run() throws InterruptedException {
+    this.payload = BenchmarkPackets.createPayload(this.payloadSize);
+    // Something like a join sequence: many small packets and a few large ones.
+    ByteBuf largePayload = BenchmarkPackets.createPayload(this.payloadSize * 64);
+    this.joinPacket = this.factory.createPreparedPacket(ProtocolVersion.MINIMUM_VERSION, ProtocolVersion.MAXIMUM_VERSION);
+    for (int i = 0; i < JOIN_PACKETS; i++) {
+      ByteBuf packetPayload = i % 8 == 0 ? largePayload : this.payload;
+      this.joinPacket.prepare((version) -> BenchmarkPackets.createPacket(packetPayload));
+    }
+
+    this.joinPacket.build();
+    largePayload.release();
+    if (this.pinned) {
+      this.joinPacket.pin();
+    }
+
+    // Packets relayed from backend servers reach the encoders as id and body only.
+    // The id is the same for every version here, but the client never decodes them anyway.
+    PluginMessage rawSource = BenchmarkPackets.createPacket(this.payload);
+    try {
+      this.rawPacket = this.factory.encodePacketData(rawSource, ProtocolVersion.MAXIMUM_VERSION, false, PooledByteBufAllocator.DEFAULT);
+    } finally {
+      rawSource.release();
+    }
+
+    List<ProtocolVersion> versions = new ArrayList<>(ProtocolVersion.SUPPORTED_VERSIONS);
+    List<Worker> workers = new ArrayList<>(this.threads);
+    for (int i = 0; i < this.threads; i++) {
+      workers.add(new Worker(i, versions));
+    }
+
+    Thread sampler = new Thread(this::sampleDirectMemory, "fastprepare-simulation-sampler");
+    sampler.setDaemon(true);
+    sampler.start();
+
+    long startTime = System.nanoTime();
+    for (Worker worker : workers) {
+      worker.start();
+    }
+
+    LatencyRecorder latency = new LatencyRecorder(0);
+    long writes = 0;
+    long bytes = 0;
+    long allocatedBytes = 0;
+    for (Worker worker : workers) {
+      worker.join();
+      latency.merge(worker.latency);
+      writes += worker.writes;
+      bytes += worker.bytes;
+      allocatedBytes += worker.allocatedBytes;
+    }
+
+    double seconds = (System.nanoTime() - startTime) / (double) TimeUnit.SECONDS.toNanos(1);
+    sampler.interrupt();
+    this.joinPacket.release();
+    // Pinned packets are freed by the event loops that sent them, and the loops of embedded channels run tasks only on demand.
+    // The workers are done, so their connections can be used from this thread.
+    for (Worker worker : workers) {
+      for (SimulatedConnection connection : worker.ownConnections) {
+        connection.runPendingTasks();
+      }
+    }
+
+    long leakedBytes = this.joinPacket.getRetainedBytes();
+    this.payload.release();
+    this.rawPacket.release();
+
+    System.out.printf("Connections: %d, threads: %d, duration: %.1fs%n", this.connections, this.threads, seconds);
+    System.out.printf("Throughput: %.0f writes/s, %.1f MiB/s%n", writes / seconds, bytes / seconds / (1 << 20));
+    System.out.printf("Burst latency (us): p50=%.1f p90=%.1f p99=%.1f p99.9=%.1f max=%.1f (%d samples, %d dropped)%n",
+        latency.percentile(50) / 1000.0, latency.percentile(90) / 1000.0, latency.percentile(99) / 1000.0,
+        latency.percentile(99.9) / 1000.0, latency.percentile(100) / 1000.0, latency.getSize(), latency.getDropped());
+    System.out.printf("Allocation rate: %.1f MiB/s%n", allocatedBytes / seconds / (1 << 20));
+    System.out.printf("Direct memory peak: %.1f MiB pooled, %.1f MiB NIO%n",
+        this.directMemoryPeak.get() / (double) (1 << 20), this.nioDirectMemoryPeak.get() / (double) (1 << 20));
+    System.out.printf("Join packet after release: %s%n", leakedBytes == 0 ? "freed" : leakedBytes + " bytes still retained");
+  }
+
+  private void sampleDirectMemory() {
+    BufferPoolMXBean directPool = null;
+    for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+      if (pool.getName().equals("direct")) {
+        directPool = pool;
+      }
+    }
+
+    while (!Thread.currentThread().isInterrupted()) {
+      this.directMemoryPeak.accumulateAndGet(PooledByteBufAllocator.DEFAULT.metric().usedDirectMemory(), Math::max);
+      if (directPool != null) {
+        this.nioDirectMemoryPeak.accumulateAndGet(directPool.getMemoryUsed(), Math::max);
+      }
+
+      LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+    }
+  }
+
+  // Every worker owns its connections, as EmbeddedChannel can be used only from one thread.
+  private class Worker extends Thread {
+
+    private final List<SimulatedConnection> ownConnections = new ArrayList<>();
+    private final LatencyRecorder latency = new LatencyRecorder(4_000_000);
+    private long writes;
+    private long bytes;
+    private long allocatedBytes;
+
+    Worker(int index, List<ProtocolVersion> versions) {
+      super("fastprepare-simulation-" + index);
+      for (int i = index; i < LoadSimulation.this.connections; i += LoadSimulation.this.threads) {
+        ProtocolVersion version = versions.get(i % versions.size());
+        this.ownConnections.add(new SimulatedConnection(LoadSimulation.this.factory, version, i % 2 == 0, LoadSimulation.this.velocityThreshold,
+            LoadSimulation.this.verifyFrames));
+      }
+    }
+
+    @Override
+    public void run() {
+      com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+      long allocatedBefore = threadBean.getThreadAllocatedBytes(this.getId());
+      long workerRate = LoadSimulation.this.rate / LoadSimulation.this.threads;
+      long burstInterval = workerRate <= 0 ? 0 : TimeUnit.SECONDS.toNanos(1) * LoadSimulation.this.burst / workerRate;
+      long startTime = System.nanoTime();
+      long endTime = startTime + TimeUnit.SECONDS.toNanos(LoadSimulation.this.durationSeconds);
+      long bursts = 0;
+      int connectionIndex = 0;
+      while (!this.ownConnections.isEmpty()) {
+        // Latency is measured from the scheduled start, so a stalled worker doesn't hide its own delays.
+        long scheduledTime = burstInterval == 0 ? System.nanoTime() : startTime + bursts * burstInterval;
+        if (scheduledTime >= endTime) {
+          break;
+        }
+
+        long delay = scheduledTime - System.nanoTime();
+        if (delay > 0) {
+          LockSupport.parkNanos(delay);
+        }
+
+        SimulatedConnection connection = this.ownConnections.get(connectionIndex);
+        connectionIndex = (connectionIndex + 1) % this.ownConnections.size();
+        this.writeBurst(connection);
+        this.latency.record(System.nanoTime() - scheduledTime);
+        if (LoadSimulation.this.compressionToggleEvery > 0 && ++bursts % LoadSimulation.this.compressionToggleEvery == 0) {
+          connection.toggleCompression();
+        }
+      }
+
+      for (SimulatedConnection connection : this.ownConnections) {
+        connection.close();
+      }
+
+      LoadSimulation.this.factory.releaseThread(this);
+      this.allocatedBytes = threadBean.getThreadAllocatedBytes(this.getId()) - allocatedBefore;
+    }
+
+    private void writeBurst(SimulatedConnection connection) {
+      // Math.random() shares one atomically updated seed between all the workers.
+      ThreadLocalRandom random = ThreadLocalRandom.current();
+      for (int i = 0; i < LoadSimulation.this.burst; i++) {
+        double kind = random.nextDouble();
+        if (kind < LoadSimulation.this.preparedRatio) {
+          connection.write(LoadSimulation.this.joinPacket, JOIN_PACKETS);
+        } else if (kind < LoadSimulation.this.preparedRatio + LoadSimulation.this.rawRatio) {
+          // Encoders release raw buffers themselves.
+          connection.write(LoadSimulation.this.rawPacket.retainedDuplicate());
+        } else {
+          // FastPrepare's encoders don't take the ownership of MinecraftPackets, batching ones retain them until the flush.
+          PluginMessage packet = BenchmarkPackets.createPacket(LoadSimulation.this.payload);
+          connection.write(packet);
+          packet.release();
+        }
+      }
+
+      this.bytes += connection.flush();
+      this.writes += LoadSimulation.this.burst;
+    }
+  }
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2021 - 2023 Elytrium
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.elytrium.fastprepare.simulation;
+
+import com.velocitypowered.api.network.ProtocolVersion;
+import com.velocitypowered.api.proxy.Player;
+import com.velocitypowered.natives.util.Natives;
+import com.velocitypowered.proxy.connection.MinecraftConnection;
+import com.velocitypowered.proxy.network.Connections;
+import com.velocitypowered.proxy.protocol.ProtocolUtils;
+import com.velocitypowered.proxy.protocol.StateRegistry;
+import com.velocitypowered.proxy.protocol.VelocityConnectionEvent;
+import com.velocitypowered.proxy.protocol.netty.MinecraftCompressorAndLengthEncoder;
+import com.velocitypowered.proxy.protocol.netty.MinecraftDecoder;
+import com.velocitypowered.proxy.protocol.netty.MinecraftEncoder;
+import com.velocitypowered.proxy.protocol.netty.MinecraftVarintLengthEncoder;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.util.ReferenceCountUtil;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import net.elytrium.fastprepare.PreparedPacketFactory;
+import net.elytrium.fastprepare.benchmark.BenchmarkPackets;
+
+// Pipeline of a single player, as FastPrepare sees it after the player has joined.
+// Velocity's Player is stubbed, MinecraftConnection is real, but it is not bound to a VelocityServer,
+// so the compression is switched here as Velocity would do it.
+// The fused encoder frames packets through Velocity's frame and compression encoders, so they are kept in its pipeline.
+// The plain encoder frames packets by itself, so its pipeline has none of them, as in the pipelines FastPrepare is used with.
+public class SimulatedConnection {
+
+  private static final byte[] CHANNEL = BenchmarkPackets.CHANNEL.getBytes(StandardCharsets.UTF_8);
+
+  private final EmbeddedChannel channel;
+  private final ProtocolVersion protocolVersion;
+  private final boolean onlineMode;
+  private final boolean fused;
+  private final int compressionThreshold;
+  private final boolean canToggleCompression;
+  private final Inflater inflater;
+  private boolean compressionEnabled;
+  private long expectedFrames;
+
+  public SimulatedConnection(PreparedPacketFactory factory, ProtocolVersion protocolVersion, boolean onlineMode, int compressionThreshold,
+                             boolean verifyFrames) {
+    this.channel = new EmbeddedChannel();
+    this.protocolVersion = protocolVersion;
+    this.onlineMode = onlineMode;
+    this.fused = factory.shouldUseFusedEncoder();
+    this.compressionThreshold = compressionThreshold;
+    this.inflater = verifyFrames ? new Inflater() : null;
+
+    ChannelPipeline pipeline = this.channel.pipeline();
+    pipeline.addLast(Connections.MINECRAFT_DECODER, new MinecraftDecoder(ProtocolUtils.Direction.SERVERBOUND));
+    if (this.fused) {
+      pipeline.addLast(Connections.FRAME_ENCODER, MinecraftVarintLengthEncoder.INSTANCE);
+    }
+
+    pipeline.addLast(Connections.MINECRAFT_ENCODER, new MinecraftEncoder(ProtocolUtils.Direction.CLIENTBOUND));
+
+    MinecraftConnection connection = new MinecraftConnection(this.channel, null);
+    connection.setProtocolVersion(protocolVersion);
+    connection.setState(StateRegistry.PLAY);
+    factory.inject(this.createPlayer(), connection, pipeline);
+
+    // Players join with compression already enabled, Velocity doesn't compress 1.7 connections.
+    // Prepared packets can only be sent the way the factory is configured, so the proxy is expected to compress the same way,
+    // and compression can be disabled only if the factory saves uncompressed packets too.
+    boolean compressible = factory.isCompressionEnabled() && protocolVersion.compareTo(ProtocolVersion.MINECRAFT_1_8) >= 0;
+    this.canToggleCompression = compressible && factory.shouldSaveUncompressed();
+    if (compressible) {
+      this.setCompressionEnabled(true);
+    }
+  }
+
+  private Player createPlayer() {
+    return (Player) Proxy.newProxyInstance(Player.class.getClassLoader(), new Class<?>[] {Player.class}, (proxy, method, args) -> {
+      switch (method.getName()) {
+        case "isOnlineMode":
+          return this.onlineMode;
+        case "getProtocolVersion":
+          return this.protocolVersion;
+        case "hashCode":
+          return System.identityHashCode(proxy);
+        case "equals":
+          return proxy == args[0];
+        case "toString":
+          return "SimulatedPlayer(" + this.protocolVersion + ", online=" + this.onlineMode + ")";
+        default:
+          throw new UnsupportedOperationException(method.getName() + " is not simulated");
+      }
+    });
+  }
+
+  public void write(Object msg) {
+    this.write(msg, 1);
+  }
+
+  // The frame count is the amount of packets the message should reach the client as.
+  public void write(Object msg, int frames) {
+    this.expectedFrames += frames;
+    this.channel.write(msg);
+  }
+
+  // Flushes and drops everything the "client" would receive, returns the amount of received bytes.
+  public long flush() {
+    this.channel.flush();
+    long bytes = 0;
+    long frames = 0;
+    Object msg;
+    while ((msg = this.channel.readOutbound()) != null) {
+      try {
+        if (msg instanceof ByteBuf) {
+          ByteBuf buf = (ByteBuf) msg;
+          bytes += buf.readableBytes();
+          if (this.inflater != null) {
+            frames += this.checkFrames(buf);
+          }
+        } else {
+          throw new IllegalStateException("Client received " + msg.getClass().getName() + " instead of bytes");
+        }
+      } finally {
+        ReferenceCountUtil.release(msg);
+      }
+    }
+
+    if (this.inflater != null && frames != this.expectedFrames) {
+      throw new IllegalStateException(String.format("%s: client received %d packets, %d were written", this.protocolVersion, frames, this.expectedFrames));
+    }
+
+    this.expectedFrames = 0;
+    return bytes;
+  }
+
+  // Reads the frames as the client does, every one of them should hold a single packet of the simulation.
+  // A packet framed twice or not framed at all doesn't start with the channel name where it is expected.
+  private int checkFrames(ByteBuf buf) {
+    ByteBuf frames = buf.duplicate();
+    int count = 0;
+    while (frames.isReadable()) {
+      int length = ProtocolUtils.readVarInt(frames);
+      if (length > frames.readableBytes()) {
+        throw new IllegalStateException(String.format("%s: frame of %d bytes, only %d bytes left", this.protocolVersion, length, frames.readableBytes()));
+      }
+
+      ByteBuf packet = frames.readSlice(length);
+      if (this.compressionEnabled) {
+        packet = this.decompress(packet);
+      }
+
+      ProtocolUtils.readVarInt(packet);
+      int channelLength = ProtocolUtils.readVarInt(packet);
+      if (channelLength != CHANNEL.length || packet.readableBytes() < channelLength
+          || !ByteBufUtil.equals(packet, packet.readerIndex(), Unpooled.wrappedBuffer(CHANNEL), 0, channelLength)) {
+        throw new IllegalStateException(this.protocolVersion + ": frame doesn't hold a single packet");
+      }
+
+      count++;
+    }
+
+    return count;
+  }
+
+  private ByteBuf decompress(ByteBuf frame) {
+    int dataLength = ProtocolUtils.readVarInt(frame);
+    if (dataLength == 0) {
+      return frame;
+    }
+
+    byte[] data = new byte[dataLength];
+    this.inflater.reset();
+    this.inflater.setInput(ByteBufUtil.getBytes(frame));
+    try {
+      if (this.inflater.inflate(data) != dataLength || !this.inflater.finished()) {
+        throw new IllegalStateException(this.protocolVersion + ": compressed frame doesn't match its data length");
+      }
+    } catch (DataFormatException e) {
+      throw new IllegalStateException(this.protocolVersion + ": frame is not compressed properly", e);
+    }
+
+    return Unpooled.wrappedBuffer(data);
+  }
+
+  public void toggleCompression() {
+    if (this.canToggleCompression) {
+      this.setCompressionEnabled(!this.compressionEnabled);
+    }
+  }
+
+  // Switches the encoders the way MinecraftConnection#setCompressionThreshold does, the decoders are irrelevant here.
+  private void setCompressionEnabled(boolean compressionEnabled) {
+    ChannelPipeline pipeline = this.channel.pipeline();
+    if (this.fused && compressionEnabled) {
+      pipeline.remove(Connections.FRAME_ENCODER);
+      pipeline.addBefore(Connections.MINECRAFT_ENCODER, Connections.COMPRESSION_ENCODER, new MinecraftCompressorAndLengthEncoder(
+          this.compressionThreshold, Natives.compress.get().create(BenchmarkPackets.COMPRESSION_LEVEL)));
+    } else if (this.fused) {
+      pipeline.remove(Connections.COMPRESSION_ENCODER);
+      pipeline.addBefore(Connections.MINECRAFT_ENCODER, Connections.FRAME_ENCODER, MinecraftVarintLengthEncoder.INSTANCE);
+    }
+
+    pipeline.fireUserEventTriggered(compressionEnabled ? VelocityConnectionEvent.COMPRESSION_ENABLED : VelocityConnectionEvent.COMPRESSION_DISABLED);
+    this.compressionEnabled = compressionEnabled;
+  }
+
+  public void close() {
+    this.channel.finishAndReleaseAll();
+    if (this.inflater != null) {
+      this.inflater.end();
+    }
+  }
+
+  // Runs the tasks scheduled on the channel's own event loop, e.g. the drains of pinned PreparedPackets after their release.
+  public void runPendingTasks() {
+    this.channel.runPendingTasks();
+  }
+
+  public ProtocolVersion getProtocolVersion() {
+    return this.protocolVersion;
+  }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2021 - 2023 Elytrium
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.elytrium.fastprepare;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import java.util.ArrayList;
+import java.util.List;
+
+// Append-only storage used while the PreparedPacket is not built yet.
+// Every chunk except the last one is filled up to CHUNK_SIZE, so appending never copies already written chunks,
+// and two buffers with the same length always have the same chunk boundaries.
+final class ChunkedBuffer {
+
+  static final int CHUNK_SIZE = 64 * 1024;
+
+  private final ByteBufAllocator allocator;
+  private final List<ByteBuf> chunks = new ArrayList<>();
+  private ByteBuf lastChunk;
+  private int readableBytes;
+
+  ChunkedBuffer(ByteBufAllocator allocator) {
+    this.allocator = allocator;
+  }
+
+  // Doesn't move the reader index of the buf, so the same buf can be written into several ChunkedBuffers.
+  void write(ByteBuf buf) {
+    int readerIndex = buf.readerIndex();
+    int remaining = buf.readableBytes();
+    this.readableBytes += remaining;
+    while (remaining > 0) {
+      if (this.lastChunk == null || this.lastChunk.maxWritableBytes() == 0) {
+        this.lastChunk = this.allocator.directBuffer(Math.min(remaining, CHUNK_SIZE), CHUNK_SIZE);
+        this.chunks.add(this.lastChunk);
+      }
+
+      int length = Math.min(remaining, this.lastChunk.maxWritableBytes());
+      this.lastChunk.writeBytes(buf, readerIndex, length);
+      readerIndex += length;
+      remaining -= length;
+    }
+  }
+
+  int readableBytes() {
+    return this.readableBytes;
+  }
+
+  boolean contentEquals(ChunkedBuffer other) {
+    if (this.readableBytes != other.readableBytes) {
+      return false;
+    }
+
+    for (int i = 0, chunksSize = this.chunks.size(); i < chunksSize; i++) {
+      if (!this.chunks.get(i).equals(other.chunks.get(i))) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  ByteBuf toByteBuf() {
+    ByteBuf buf = this.allocator.directBuffer(this.readableBytes, this.readableBytes);
+    for (ByteBuf chunk : this.chunks) {
+      buf.writeBytes(chunk, chunk.readerIndex(), chunk.readableBytes());
+    }
+
+    return buf;
+  }
+
+  void release() {
+    for (ByteBuf chunk : this.chunks) {
+      chunk.release();
+    }
+
+    this.chunks.clear();
+    this.lastChunk = null;
+    this.readableBytes = 0;
+  }
+}
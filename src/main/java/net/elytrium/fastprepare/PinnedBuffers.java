@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2021 - 2023 Elytrium
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.elytrium.fastprepare;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelPromise;
+import io.netty.util.concurrent.EventExecutor;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Keeps the buffers of a pinned PreparedPacket alive without touching their reference counts on every send.
+// Every event loop holds the buffers once since its first send and lets them go when the PreparedPacket is released
+// and the writes of this event loop are drained, so the shared counter is touched once per event loop instead of twice per send.
+final class PinnedBuffers {
+
+  private final Map<EventExecutor, LoopHold> holds = new ConcurrentHashMap<>();
+  // The owner of the PreparedPacket holds the buffers too, until release() is called.
+  private final AtomicInteger holders = new AtomicInteger(1);
+  private final Runnable releaseAction;
+  private volatile boolean released;
+
+  PinnedBuffers(Runnable releaseAction) {
+    this.releaseAction = releaseAction;
+  }
+
+  // Should be called from the given event loop, and the view should be written with the given promise.
+  ByteBuf view(ByteBuf buf, EventExecutor executor, ChannelPromise promise) {
+    LoopHold hold = this.holds.get(executor);
+    if (hold == null) {
+      hold = this.hold(executor);
+    } else if (hold.unpinned) {
+      throw new IllegalStateException("PreparedPacket is already released");
+    }
+
+    hold.outstanding++;
+    promise.addListener(hold);
+    // Read-only, so nothing down the pipeline can modify the memory shared with other connections.
+    return Unpooled.unreleasableBuffer(buf.asReadOnly());
+  }
+
+  void release() {
+    this.released = true;
+    this.holds.forEach((executor, hold) -> {
+      try {
+        executor.execute(hold::drain);
+      } catch (RejectedExecutionException e) {
+        // The event loop is shut down, its writes are already failed.
+        hold.drain();
+      }
+    });
+
+    this.unhold();
+  }
+
+  private LoopHold hold(EventExecutor executor) {
+    // The buffers may be freed already if the holders dropped to zero, so they can't be held again.
+    int holders;
+    do {
+      holders = this.holders.get();
+      if (holders == 0) {
+        throw new IllegalStateException("PreparedPacket is already released");
+      }
+    } while (!this.holders.compareAndSet(holders, holders + 1));
+
+    LoopHold hold = new LoopHold();
+    this.holds.put(executor, hold);
+    // release() may have missed the new hold while iterating.
+    if (this.released) {
+      hold.drain();
+      throw new IllegalStateException("PreparedPacket is already released");
+    }
+
+    return hold;
+  }
+
+  private void unhold() {
+    if (this.holders.decrementAndGet() == 0) {
+      this.releaseAction.run();
+    }
+  }
+
+  // Confined to its event loop, so plain fields are enough.
+  private final class LoopHold implements ChannelFutureListener {
+
+    private int outstanding;
+    private boolean unpinned;
+
+    @Override
+    public void operationComplete(ChannelFuture future) {
+      if (--this.outstanding == 0 && PinnedBuffers.this.released) {
+        this.drain();
+      }
+    }
+
+    private void drain() {
+      if (this.outstanding == 0 && !this.unpinned) {
+        this.unpinned = true;
+        PinnedBuffers.this.unhold();
+      }
+    }
+  }
+}
@@ -21,20 +21,35 @@ import com.google.common.base.Preconditions;
 import com.velocitypowered.api.network.ProtocolVersion;
 import com.velocitypowered.proxy.protocol.MinecraftPacket;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.channel.ChannelPromise;
 import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.EventExecutor;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.EnumSet;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Function;
+import net.elytrium.fastprepare.metrics.PrepareEvent;
+import net.elytrium.fastprepare.metrics.PreparedPacketMetrics;
 
 public class PreparedPacket {
 
   private final ByteBuf[] packets = new ByteBuf[ProtocolVersion.values().length];
+  private final ChunkedBuffer[] pendingPackets = new ChunkedBuffer[ProtocolVersion.values().length];
   private final ProtocolVersion minVersion;
   private final ProtocolVersion maxVersion;
   private final PreparedPacketFactory factory;
+  private final AtomicInteger referenceCount = new AtomicInteger(1);
   private ByteBuf[] uncompressedPackets;
-  private boolean disposed;
+  private ChunkedBuffer[] pendingUncompressedPackets;
+  private volatile PinnedBuffers pinnedBuffers;
+  private volatile boolean disposed;
+  private Runnable releaseListener;
 
   public PreparedPacket(ProtocolVersion minVersion, ProtocolVersion maxVersion, PreparedPacketFactory factory) {
     this.minVersion = minVersion;
@@ -55,15 +70,7 @@ public class PreparedPacket {
   }
 
   public <T> PreparedPacket prepare(List<T> packets) {
-    if (packets == null) {
-      return this;
-    }
-
-    for (T packet : packets) {
-      this.prepare(packet, ProtocolVersion.MINIMUM_VERSION, ProtocolVersion.MAXIMUM_VERSION);
-    }
-
-    return this;
+    return this.prepare(packets, ProtocolVersion.MINIMUM_VERSION, ProtocolVersion.MAXIMUM_VERSION);
   }
 
   public <T> PreparedPacket prepare(T packet, ProtocolVersion from) {
@@ -76,7 +83,7 @@ public class PreparedPacket {
     }
 
     try {
-      return this.prepare((version) -> ReferenceCountUtil.retain(packet), from, ProtocolVersion.MAXIMUM_VERSION);
+      return this.prepareBatch((version) -> Collections.singletonList(ReferenceCountUtil.retain(packet)), from, to, true);
     } finally {
       ReferenceCountUtil.release(packet);
     }
@@ -91,27 +98,38 @@ public class PreparedPacket {
   }
 
   public <T> PreparedPacket prepare(List<T> packets, ProtocolVersion from) {
+    return this.prepare(packets, from, ProtocolVersion.MAXIMUM_VERSION);
+  }
+
+  public <T> PreparedPacket prepare(List<T> packets, ProtocolVersion from, ProtocolVersion to) {
     if (packets == null) {
       return this;
     }
 
+    List<T> nonNullPackets = new ArrayList<>(packets.size());
     for (T packet : packets) {
-      this.prepare(packet, from);
+      if (packet != null) {
+        nonNullPackets.add(packet);
+      }
     }
 
-    return this;
-  }
-
-  public <T> PreparedPacket prepare(List<T> packets, ProtocolVersion from, ProtocolVersion to) {
-    if (packets == null) {
+    if (nonNullPackets.isEmpty()) {
       return this;
     }
 
-    for (T packet : packets) {
-      this.prepare(packet, from, to);
-    }
+    try {
+      return this.prepareBatch((version) -> {
+        for (T packet : nonNullPackets) {
+          ReferenceCountUtil.retain(packet);
+        }
 
-    return this;
+        return nonNullPackets;
+      }, from, to, true);
+    } finally {
+      for (T packet : nonNullPackets) {
+        ReferenceCountUtil.release(packet);
+      }
+    }
   }
 
   public <T> PreparedPacket prepare(Function<ProtocolVersion, T> packet) {
@@ -123,47 +141,143 @@ public class PreparedPacket {
   }
 
   public <T> PreparedPacket prepare(Function<ProtocolVersion, T> packet, ProtocolVersion originalFrom, ProtocolVersion originalTo) {
+    return this.prepareBatch((version) -> Collections.singletonList(packet.apply(version)), originalFrom, originalTo, false);
+  }
+
+  // Packets returned for one version are encoded and framed as a single batch.
+  // If the same packet instances are used for every version, versions that are equivalent
+  // according to PreparedPacketFactory#isEquivalent reuse the previous encoding instead of being encoded again.
+  private PreparedPacket prepareBatch(Function<ProtocolVersion, ? extends List<?>> packets, ProtocolVersion originalFrom, ProtocolVersion originalTo,
+                                      boolean sameInstance) {
     ProtocolVersion from = originalFrom.compareTo(this.minVersion) > 0 ? originalFrom : this.minVersion;
     ProtocolVersion to = originalTo.compareTo(this.maxVersion) < 0 ? originalTo : this.maxVersion;
     if (from.compareTo(to) > 0) {
       return this;
     }
-    for (ProtocolVersion protocolVersion : EnumSet.range(from, to)) {
-      T minecraftPacket = packet.apply(protocolVersion);
-      try {
-        Preconditions.checkArgument(minecraftPacket instanceof MinecraftPacket);
-        MinecraftPacket castedMinecraftPacket = (MinecraftPacket) minecraftPacket;
-        ByteBuf buf = this.factory.encodeSingle(castedMinecraftPacket, protocolVersion);
+
+    PrepareEvent event = new PrepareEvent();
+    event.begin();
+    PreparedPacketMetrics metrics = this.factory.getMetrics();
+    long startTime = metrics.isEnabled() ? System.nanoTime() : 0L;
+    List<Class<? extends MinecraftPacket>> packetClasses = null;
+    int encodedVersions = 0;
+    long encodedBytes = 0;
+    ProtocolVersion encodedVersion = null;
+    ByteBuf buf = null;
+    ByteBuf uncompressedBuf = null;
+    try {
+      for (ProtocolVersion protocolVersion : EnumSet.range(from, to)) {
         int versionKey = protocolVersion.ordinal();
-        if (this.packets[versionKey] == null) {
-          this.packets[versionKey] = this.factory.getPreparedPacketAllocator().directBuffer();
+        Preconditions.checkState(this.packets[versionKey] == null, "PreparedPacket is already built for %s", protocolVersion);
+        if (encodedVersion != null && this.isEquivalent(packetClasses, encodedVersion, protocolVersion)) {
+          this.append(versionKey, buf, uncompressedBuf);
+          continue;
         }
 
-        this.packets[versionKey].writeBytes(buf);
-        buf.release();
+        if (buf != null) {
+          buf.release();
+          buf = null;
+        }
 
-        if (this.factory.shouldSaveUncompressed()) {
-          ByteBuf buf2 = this.factory.encodeSingle(castedMinecraftPacket, protocolVersion, false);
+        if (uncompressedBuf != null) {
+          uncompressedBuf.release();
+          uncompressedBuf = null;
+        }
 
-          if (this.uncompressedPackets == null) {
-            this.uncompressedPackets = new ByteBuf[ProtocolVersion.values().length];
+        List<?> minecraftPackets = packets.apply(protocolVersion);
+        try {
+          List<MinecraftPacket> castedMinecraftPackets = new ArrayList<>(minecraftPackets.size());
+          packetClasses = new ArrayList<>(minecraftPackets.size());
+          for (Object minecraftPacket : minecraftPackets) {
+            Preconditions.checkArgument(minecraftPacket instanceof MinecraftPacket);
+            MinecraftPacket castedMinecraftPacket = (MinecraftPacket) minecraftPacket;
+            castedMinecraftPackets.add(castedMinecraftPacket);
+            packetClasses.add(castedMinecraftPacket.getClass());
           }
 
-          if (this.uncompressedPackets[versionKey] == null) {
-            this.uncompressedPackets[versionKey] = this.factory.getPreparedPacketAllocator().directBuffer();
+          if (castedMinecraftPackets.size() == 1) {
+            MinecraftPacket castedMinecraftPacket = castedMinecraftPackets.get(0);
+            if (this.factory.shouldSaveUncompressed()) {
+              ByteBuf[] bufs = this.factory.encodeSingleWithUncompressed(castedMinecraftPacket, protocolVersion);
+              buf = bufs[0];
+              uncompressedBuf = bufs[1];
+            } else {
+              buf = this.factory.encodeSingle(castedMinecraftPacket, protocolVersion);
+            }
+          } else if (this.factory.shouldSaveUncompressed()) {
+            ByteBuf[] bufs = this.factory.encodeBatchWithUncompressed(castedMinecraftPackets, protocolVersion);
+            buf = bufs[0];
+            uncompressedBuf = bufs[1];
+          } else {
+            buf = this.factory.encodeBatch(castedMinecraftPackets, protocolVersion);
           }
 
-          this.uncompressedPackets[versionKey].writeBytes(buf2);
-          buf2.release();
+          encodedVersion = sameInstance ? protocolVersion : null;
+          encodedVersions++;
+          encodedBytes += buf.readableBytes();
+          this.append(versionKey, buf, uncompressedBuf);
+        } finally {
+          for (Object minecraftPacket : minecraftPackets) {
+            ReferenceCountUtil.release(minecraftPacket);
+          }
         }
-      } finally {
-        ReferenceCountUtil.release(minecraftPacket);
       }
+    } finally {
+      if (buf != null) {
+        buf.release();
+      }
+
+      if (uncompressedBuf != null) {
+        uncompressedBuf.release();
+      }
+    }
+
+    if (metrics.isEnabled()) {
+      metrics.recordPrepare(System.nanoTime() - startTime, encodedVersions, encodedBytes);
+    }
+
+    if (event.shouldCommit()) {
+      event.packetClass = packetClasses == null || packetClasses.isEmpty() ? null : packetClasses.get(0).getName();
+      event.fromVersion = from.toString();
+      event.toVersion = to.toString();
+      event.encodedVersions = encodedVersions;
+      event.encodedBytes = encodedBytes;
+      event.commit();
     }
 
     return this;
   }
 
+  private boolean isEquivalent(List<Class<? extends MinecraftPacket>> packetClasses, ProtocolVersion first, ProtocolVersion second) {
+    for (Class<? extends MinecraftPacket> packetClass : packetClasses) {
+      if (!this.factory.isEquivalent(packetClass, first, second)) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  private void append(int versionKey, ByteBuf buf, ByteBuf uncompressedBuf) {
+    if (this.pendingPackets[versionKey] == null) {
+      this.pendingPackets[versionKey] = new ChunkedBuffer(this.factory.getPreparedPacketAllocator());
+    }
+
+    this.pendingPackets[versionKey].write(buf);
+
+    if (uncompressedBuf != null) {
+      if (this.pendingUncompressedPackets == null) {
+        this.pendingUncompressedPackets = new ChunkedBuffer[ProtocolVersion.values().length];
+      }
+
+      if (this.pendingUncompressedPackets[versionKey] == null) {
+        this.pendingUncompressedPackets[versionKey] = new ChunkedBuffer(this.factory.getPreparedPacketAllocator());
+      }
+
+      this.pendingUncompressedPackets[versionKey].write(uncompressedBuf);
+    }
+  }
+
   public ByteBuf getPackets(ProtocolVersion version) {
     return this.packets[version.ordinal()];
   }
@@ -173,55 +287,272 @@ public class PreparedPacket {
   }
 
   public PreparedPacket build() {
-    if (this.uncompressedPackets == null) {
+    int dedupHits = this.buildPacketArray(this.pendingPackets, this.packets);
+    if (this.pendingUncompressedPackets != null) {
+      if (this.uncompressedPackets == null) {
+        this.uncompressedPackets = new ByteBuf[ProtocolVersion.values().length];
+      }
+
+      dedupHits += this.buildPacketArray(this.pendingUncompressedPackets, this.uncompressedPackets);
+      this.pendingUncompressedPackets = null;
+    } else if (this.uncompressedPackets == null) {
       this.uncompressedPackets = this.packets;
     }
 
-    this.buildPacketArray(this.packets);
-    this.buildPacketArray(this.uncompressedPackets);
+    PreparedPacketMetrics metrics = this.factory.getMetrics();
+    if (metrics.isEnabled()) {
+      metrics.recordBuild(this.getRetainedBytes(), dedupHits);
+    }
 
     return this;
   }
 
-  private void buildPacketArray(ByteBuf[] packetArray) {
+  // Duplicates are compared while still chunked, so only unique versions are copied into their final buffers.
+  private int buildPacketArray(ChunkedBuffer[] pendingArray, ByteBuf[] packetArray) {
+    int dedupHits = 0;
+    ChunkedBuffer prevPending = null;
     ByteBuf prevBuf = null;
-    for (int i = 0, packetsLength = packetArray.length; i < packetsLength; i++) {
-      ByteBuf buf = packetArray[i];
-      if (buf != null) {
-        if (buf == prevBuf) {
-          packetArray[i] = prevBuf;
-        } else if (buf.equals(prevBuf)) {
-          buf.release();
+    for (int i = 0, packetsLength = pendingArray.length; i < packetsLength; i++) {
+      ChunkedBuffer pending = pendingArray[i];
+      if (pending != null) {
+        if (prevPending != null && pending.contentEquals(prevPending)) {
+          pending.release();
           packetArray[i] = prevBuf;
+          dedupHits++;
         } else {
-          packetArray[i] = buf.capacity(buf.readableBytes());
-          prevBuf = buf;
+          if (prevPending != null) {
+            prevPending.release();
+          }
+
+          prevBuf = pending.toByteBuf();
+          prevPending = pending;
+          packetArray[i] = prevBuf;
         }
+
+        pendingArray[i] = null;
       }
     }
+
+    if (prevPending != null) {
+      prevPending.release();
+    }
+
+    return dedupHits;
+  }
+
+  // Composes already built PreparedPackets into this one without copying or re-encoding them.
+  // Every version buffer is a composite of retained slices of the parts, so the parts can be released independently.
+  // Versions that some of the parts weren't prepared for are left empty.
+  public PreparedPacket compose(PreparedPacket... parts) {
+    Preconditions.checkArgument(parts.length > 0, "Nothing to compose");
+    Preconditions.checkState(this.uncompressedPackets == null && this.isPendingEmpty(), "Only an empty PreparedPacket can be composed");
+
+    ProtocolVersion from = this.minVersion;
+    ProtocolVersion to = this.maxVersion;
+    boolean separateUncompressed = false;
+    for (PreparedPacket part : parts) {
+      Preconditions.checkState(part.uncompressedPackets != null && !part.disposed, "PreparedPacket should be built and not released before composing");
+      from = part.minVersion.compareTo(from) > 0 ? part.minVersion : from;
+      to = part.maxVersion.compareTo(to) < 0 ? part.maxVersion : to;
+      separateUncompressed |= part.uncompressedPackets != part.packets;
+    }
+
+    if (from.compareTo(to) <= 0) {
+      this.composePacketArray(parts, from, to, false, this.packets);
+    }
+
+    if (separateUncompressed) {
+      this.uncompressedPackets = new ByteBuf[ProtocolVersion.values().length];
+      if (from.compareTo(to) <= 0) {
+        this.composePacketArray(parts, from, to, true, this.uncompressedPackets);
+      }
+    } else {
+      this.uncompressedPackets = this.packets;
+    }
+
+    return this;
+  }
+
+  private void composePacketArray(PreparedPacket[] parts, ProtocolVersion from, ProtocolVersion to, boolean uncompressed, ByteBuf[] packetArray) {
+    ByteBuf[] prevComponents = null;
+    ByteBuf prevBuf = null;
+    for (ProtocolVersion protocolVersion : EnumSet.range(from, to)) {
+      int versionKey = protocolVersion.ordinal();
+      ByteBuf[] components = new ByteBuf[parts.length];
+      boolean complete = true;
+      for (int i = 0; i < parts.length; i++) {
+        components[i] = uncompressed ? parts[i].uncompressedPackets[versionKey] : parts[i].packets[versionKey];
+        complete &= components[i] != null;
+      }
+
+      // Sending only some of the parts would be worse than not sending the packet at all.
+      if (!complete) {
+        continue;
+      }
+
+      // Parts are deduplicated by reference after build, so consecutive versions usually share all the components.
+      if (prevComponents != null && this.isSameComponents(prevComponents, components)) {
+        packetArray[versionKey] = prevBuf;
+        continue;
+      }
+
+      CompositeByteBuf composite = this.factory.getPreparedPacketAllocator().compositeDirectBuffer(parts.length);
+      for (ByteBuf component : components) {
+        composite.addComponent(true, component.retainedSlice());
+      }
+
+      packetArray[versionKey] = composite;
+      prevComponents = components;
+      prevBuf = composite;
+    }
+  }
+
+  private boolean isSameComponents(ByteBuf[] first, ByteBuf[] second) {
+    for (int i = 0; i < first.length; i++) {
+      if (first[i] != second[i]) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  private boolean isPendingEmpty() {
+    for (ChunkedBuffer pending : this.pendingPackets) {
+      if (pending != null) {
+        return false;
+      }
+    }
+
+    return this.pendingUncompressedPackets == null;
+  }
+
+  // Long-lived packets sent to many players at once can be pinned, so sends from different event loops use views
+  // that are not reference counted and don't contend on the reference counts of the shared buffers.
+  // The buffers are freed after release(), once the writes of every event loop are drained.
+  // Encoders that copy the packets (online mode players, as the cipher works in place) keep copying them.
+  public PreparedPacket pin() {
+    Preconditions.checkState(this.uncompressedPackets != null && !this.disposed, "PreparedPacket should be built and not released before pinning");
+    if (this.pinnedBuffers == null) {
+      this.pinnedBuffers = new PinnedBuffers(this::releaseBuffers);
+    }
+
+    return this;
+  }
+
+  public boolean isPinned() {
+    return this.pinnedBuffers != null;
+  }
+
+  // Should be called from the event loop of the channel, and the view should be written with the given promise.
+  public ByteBuf getPinnedView(ByteBuf buf, EventExecutor executor, ChannelPromise promise) {
+    Preconditions.checkState(this.pinnedBuffers != null, "PreparedPacket is not pinned");
+    return this.pinnedBuffers.view(buf, executor, promise);
+  }
+
+  public ProtocolVersion getMinVersion() {
+    return this.minVersion;
+  }
+
+  public ProtocolVersion getMaxVersion() {
+    return this.maxVersion;
+  }
+
+  public long getRetainedBytes() {
+    Set<ByteBuf> buffers = Collections.newSetFromMap(new IdentityHashMap<>());
+    Collections.addAll(buffers, this.packets);
+    if (this.uncompressedPackets != null) {
+      Collections.addAll(buffers, this.uncompressedPackets);
+    }
+
+    long retainedBytes = 0;
+    for (ByteBuf buf : buffers) {
+      if (buf != null && buf.refCnt() != 0) {
+        retainedBytes += buf.capacity();
+      }
+    }
+
+    return retainedBytes;
+  }
+
+  // PreparedPackets shared through PreparedPacketFactory#getOrPrepare are retained for every user and freed by the last one.
+  public PreparedPacket retain() {
+    Preconditions.checkState(this.tryRetain(), "PreparedPacket is already released");
+    return this;
+  }
+
+  boolean tryRetain() {
+    int referenceCount;
+    do {
+      referenceCount = this.referenceCount.get();
+      if (referenceCount == 0) {
+        return false;
+      }
+    } while (!this.referenceCount.compareAndSet(referenceCount, referenceCount + 1));
+
+    return true;
+  }
+
+  public int refCnt() {
+    return this.referenceCount.get();
+  }
+
+  void setReleaseListener(Runnable releaseListener) {
+    this.releaseListener = releaseListener;
   }
 
   public void release() {
-    if (this.disposed) {
+    // Releasing a released PreparedPacket is a no-op, as it always was.
+    int referenceCount;
+    do {
+      referenceCount = this.referenceCount.get();
+      if (referenceCount == 0) {
+        return;
+      }
+    } while (!this.referenceCount.compareAndSet(referenceCount, referenceCount - 1));
+
+    if (referenceCount != 1) {
       return;
     }
 
+    if (this.releaseListener != null) {
+      this.releaseListener.run();
+    }
+
     this.disposed = true;
-    for (ByteBuf packet : this.packets) {
-      if (packet != null) {
-        if (packet.refCnt() != 0) {
-          packet.release();
-        }
+    this.releasePending(this.pendingPackets);
+    if (this.pendingUncompressedPackets != null) {
+      this.releasePending(this.pendingUncompressedPackets);
+    }
+
+    if (this.pinnedBuffers != null) {
+      this.pinnedBuffers.release();
+    } else {
+      this.releaseBuffers();
+    }
+  }
+
+  // Deduplicated versions share one buffer, and composed packets hold their own references to it,
+  // so every distinct buffer is released exactly once.
+  private void releaseBuffers() {
+    Set<ByteBuf> buffers = Collections.newSetFromMap(new IdentityHashMap<>());
+    Collections.addAll(buffers, this.packets);
+    if (this.uncompressedPackets != null) {
+      Collections.addAll(buffers, this.uncompressedPackets);
+    }
+
+    for (ByteBuf buf : buffers) {
+      if (buf != null) {
+        buf.release();
       }
     }
+  }
 
-    if (this.uncompressedPackets != null && this.packets != this.uncompressedPackets) {
-      for (ByteBuf packet : this.uncompressedPackets) {
-        if (packet != null) {
-          if (packet.refCnt() != 0) {
-            packet.release();
-          }
-        }
+  private void releasePending(ChunkedBuffer[] pendingArray) {
+    for (int i = 0, packetsLength = pendingArray.length; i < packetsLength; i++) {
+      if (pendingArray[i] != null) {
+        pendingArray[i].release();
+        pendingArray[i] = null;
       }
     }
   }
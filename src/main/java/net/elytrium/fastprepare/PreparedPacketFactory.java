@@ -17,11 +17,13 @@
 
 package net.elytrium.fastprepare;
 
+import com.google.common.base.Preconditions;
 import com.velocitypowered.api.network.ProtocolVersion;
 import com.velocitypowered.api.proxy.Player;
 import com.velocitypowered.natives.NativeSetupException;
 import com.velocitypowered.natives.compression.VelocityCompressor;
 import com.velocitypowered.natives.util.BufferPreference;
+import com.velocitypowered.natives.util.MoreByteBufUtils;
 import com.velocitypowered.natives.util.Natives;
 import com.velocitypowered.proxy.connection.MinecraftConnection;
 import com.velocitypowered.proxy.network.Connections;
@@ -40,16 +42,29 @@ import it.unimi.dsi.fastutil.objects.Object2IntMap;
 import java.lang.invoke.MethodHandle;
 import java.lang.invoke.MethodHandles;
 import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Supplier;
+import java.util.zip.DataFormatException;
 import net.elytrium.commons.utils.reflection.ReflectionException;
 import net.elytrium.fastprepare.dummy.DummyChannelHandlerContext;
 import net.elytrium.fastprepare.handler.CompressionEventHandler;
+import net.elytrium.fastprepare.handler.FusedPacketEncoder;
 import net.elytrium.fastprepare.handler.PreparedPacketEncoder;
+import net.elytrium.fastprepare.metrics.CompressEvent;
+import net.elytrium.fastprepare.metrics.PreparedPacketMetrics;
 
 @SuppressFBWarnings("RCN_REDUNDANT_NULLCHECK_WOULD_HAVE_BEEN_A_NPE")
 public class PreparedPacketFactory {
@@ -60,20 +75,29 @@ public class PreparedPacketFactory {
   private static final MethodHandle ALLOCATE_COMPRESSED;
   private static final MethodHandle HANDLE_VARINT;
   private static final MethodHandle ALLOCATE_VARINT;
+  private static final MethodHandle COMPRESSOR_FIELD;
+  private static final MethodHandle THRESHOLD_FIELD;
   private static final MethodHandle CLIENTBOUND_FIELD;
   private static final MethodHandle GET_PROTOCOL_REGISTRY;
   private static final MethodHandle PACKET_CLASS_TO_ID;
   private static final boolean DIRECT_BYTEBUF_PREFERRED_FOR_COMPRESSOR;
 
   private final Set<StateRegistry> stateRegistries = new HashSet<>();
+  private final Map<Class<? extends MinecraftPacket>, ProtocolVersion[]> versionBoundaries = new ConcurrentHashMap<>();
+  private final Map<Object, CompletableFuture<PreparedPacket>> sharedPackets = new ConcurrentHashMap<>();
   private final PreparedPacketConstructor constructor;
-  private final Map<Thread, MinecraftCompressorAndLengthEncoder> compressionEncoder;
+  private final Map<Thread, ThreadCompressionEncoder> compressionEncoder;
   private final ByteBufAllocator preparedPacketAllocator;
   private final ChannelHandlerContext dummyContext;
+  // Metrics may be replaced from any thread while event loops are encoding.
+  private volatile PreparedPacketMetrics metrics = PreparedPacketMetrics.NOOP;
   private boolean enableCompression;
-  private int compressionThreshold;
-  private int compressionLevel;
+  // Read by every thread to keep its own compressor up to date.
+  private volatile int compressionThreshold;
+  private volatile int compressionLevel;
   private boolean saveUncompressed;
+  private boolean batchEncoderWrites;
+  private boolean fusedEncoder;
 
   static {
     try {
@@ -89,6 +113,10 @@ public class PreparedPacketFactory {
       ALLOCATE_VARINT = MethodHandles.privateLookupIn(MinecraftVarintLengthEncoder.class, MethodHandles.lookup())
           .findVirtual(MinecraftVarintLengthEncoder.class, "allocateBuffer",
               MethodType.methodType(ByteBuf.class, ChannelHandlerContext.class, ByteBuf.class, boolean.class));
+      COMPRESSOR_FIELD = MethodHandles.privateLookupIn(MinecraftCompressorAndLengthEncoder.class, MethodHandles.lookup())
+          .findGetter(MinecraftCompressorAndLengthEncoder.class, "compressor", VelocityCompressor.class);
+      THRESHOLD_FIELD = MethodHandles.privateLookupIn(MinecraftCompressorAndLengthEncoder.class, MethodHandles.lookup())
+          .findGetter(MinecraftCompressorAndLengthEncoder.class, "threshold", int.class);
       CLIENTBOUND_FIELD = MethodHandles.privateLookupIn(StateRegistry.class, MethodHandles.lookup())
           .findGetter(StateRegistry.class, "clientbound", StateRegistry.PacketRegistry.class);
       GET_PROTOCOL_REGISTRY = MethodHandles.privateLookupIn(StateRegistry.PacketRegistry.class, MethodHandles.lookup())
@@ -143,7 +171,8 @@ public class PreparedPacketFactory {
   public void releaseThread(Thread thread) {
     if (this.compressionEncoder.containsKey(thread)) {
       try {
-        this.compressionEncoder.remove(thread).handlerRemoved(this.dummyContext);
+        this.compressionEncoder.remove(thread).encoder.handlerRemoved(this.dummyContext);
+        this.metrics.recordCompressorReleased();
       } catch (Exception e) {
         throw new NativeSetupException(e);
       }
@@ -151,50 +180,260 @@ public class PreparedPacketFactory {
   }
 
   private MinecraftCompressorAndLengthEncoder getThreadLocalCompressionEncoder() {
-    // We're creating different compressors for different threads here to allow multithreading
-    return this.compressionEncoder.computeIfAbsent(Thread.currentThread(), (key) ->
-        new MinecraftCompressorAndLengthEncoder(this.compressionThreshold, Natives.compress.get().create(this.compressionLevel)));
+    // We're creating different compressors for different threads here to allow multithreading.
+    // updateCompressor() can't touch the compressors of other threads, so every thread catches up with it here.
+    Thread thread = Thread.currentThread();
+    int level = this.compressionLevel;
+    int threshold = this.compressionThreshold;
+    ThreadCompressionEncoder threadEncoder = this.compressionEncoder.get(thread);
+    if (threadEncoder != null && threadEncoder.level != level) {
+      // The level of a native compressor can't be changed.
+      this.releaseThread(thread);
+      threadEncoder = null;
+    }
+
+    if (threadEncoder == null) {
+      this.metrics.recordCompressorCreated();
+      threadEncoder = new ThreadCompressionEncoder(new MinecraftCompressorAndLengthEncoder(threshold, Natives.compress.get().create(level)), level);
+      this.compressionEncoder.put(thread, threadEncoder);
+    } else if (getEncoderThreshold(threadEncoder.encoder) != threshold) {
+      threadEncoder.encoder.setThreshold(threshold);
+    }
+
+    return threadEncoder.encoder;
+  }
+
+  public int getCompressorCount() {
+    return this.compressionEncoder.size();
   }
 
   public PreparedPacket createPreparedPacket(ProtocolVersion minVersion, ProtocolVersion maxVersion) {
     return this.constructor.construct(minVersion, maxVersion, this);
   }
 
-  @SuppressWarnings("unchecked")
+  public PreparedPacket createComposedPreparedPacket(PreparedPacket... parts) {
+    ProtocolVersion minVersion = ProtocolVersion.MINIMUM_VERSION;
+    ProtocolVersion maxVersion = ProtocolVersion.MAXIMUM_VERSION;
+    for (PreparedPacket part : parts) {
+      minVersion = part.getMinVersion().compareTo(minVersion) > 0 ? part.getMinVersion() : minVersion;
+      maxVersion = part.getMaxVersion().compareTo(maxVersion) < 0 ? part.getMaxVersion() : maxVersion;
+    }
+
+    return this.createPreparedPacket(minVersion, maxVersion).compose(parts);
+  }
+
+  // Returns the PreparedPacket shared under the key, building it only once even if many threads request it at the same time.
+  // Every caller gets its own reference and should release it, the entry is dropped when the last reference is released.
+  // The builder should return a built PreparedPacket and must not request the same key.
+  // Blocks while another thread builds the same key, so it must not be called from an event loop, see getOrPrepareAsync.
+  public PreparedPacket getOrPrepare(Object key, Supplier<PreparedPacket> builder) {
+    while (true) {
+      CompletableFuture<PreparedPacket> future = this.sharedPackets.get(key);
+      if (future == null) {
+        CompletableFuture<PreparedPacket> created = new CompletableFuture<>();
+        future = this.sharedPackets.putIfAbsent(key, created);
+        if (future == null) {
+          this.metrics.recordSharedLookup(false);
+          return this.buildShared(key, created, builder);
+        }
+      }
+
+      PreparedPacket packet;
+      try {
+        packet = future.join();
+      } catch (CompletionException e) {
+        if (e.getCause() instanceof RuntimeException) {
+          throw (RuntimeException) e.getCause();
+        }
+
+        throw e;
+      }
+
+      if (packet.tryRetain()) {
+        this.metrics.recordSharedLookup(true);
+        return packet;
+      }
+
+      // The last user released the packet right before it was retained here, so it should be built again.
+      this.sharedPackets.remove(key, future);
+    }
+  }
+
+  // Same as getOrPrepare, but never blocks: a missing packet is built on the executor, and the returned future completes
+  // with a reference of the caller, which should be released. Meant for event loops, the executor shouldn't be one of them.
+  public CompletableFuture<PreparedPacket> getOrPrepareAsync(Object key, Supplier<PreparedPacket> builder, Executor executor) {
+    CompletableFuture<PreparedPacket> existing = this.sharedPackets.get(key);
+    if (existing == null) {
+      CompletableFuture<PreparedPacket> created = new CompletableFuture<>();
+      existing = this.sharedPackets.putIfAbsent(key, created);
+      if (existing == null) {
+        this.metrics.recordSharedLookup(false);
+        try {
+          executor.execute(() -> {
+            try {
+              this.buildShared(key, created, builder);
+            } catch (Throwable expected) {
+              // Already passed to the future.
+            }
+          });
+        } catch (RejectedExecutionException e) {
+          this.sharedPackets.remove(key, created);
+          created.completeExceptionally(e);
+        }
+
+        // The shared future itself is not handed out, so callers can't complete it for everyone else.
+        return handOut(created);
+      }
+    }
+
+    CompletableFuture<PreparedPacket> future = existing;
+    return handOut(future.thenCompose((packet) -> {
+      if (packet.tryRetain()) {
+        this.metrics.recordSharedLookup(true);
+        return CompletableFuture.completedFuture(packet);
+      }
+
+      // The last user released the packet right before it was retained here, so it should be built again.
+      this.sharedPackets.remove(key, future);
+      return this.getOrPrepareAsync(key, builder, executor);
+    }));
+  }
+
+  // Passes the reference of the caller through a future of the caller's own. If the caller cancels it or completes it
+  // in any other way before the packet is ready, the reference is released instead of being lost.
+  private static CompletableFuture<PreparedPacket> handOut(CompletableFuture<PreparedPacket> source) {
+    CompletableFuture<PreparedPacket> result = new CompletableFuture<>();
+    source.whenComplete((packet, e) -> {
+      if (e != null) {
+        result.completeExceptionally(e);
+      } else if (!result.complete(packet)) {
+        packet.release();
+      }
+    });
+
+    return result;
+  }
+
+  private PreparedPacket buildShared(Object key, CompletableFuture<PreparedPacket> future, Supplier<PreparedPacket> builder) {
+    PreparedPacket packet;
+    try {
+      packet = Preconditions.checkNotNull(builder.get(), "Builder returned null for %s", key);
+    } catch (Throwable e) {
+      // Waiting callers get the same exception, the next ones will try to build it again.
+      this.sharedPackets.remove(key, future);
+      future.completeExceptionally(e);
+      throw e;
+    }
+
+    packet.setReleaseListener(() -> this.sharedPackets.remove(key, future));
+    future.complete(packet);
+    return packet;
+  }
+
+  public int getSharedPacketCount() {
+    return this.sharedPackets.size();
+  }
+
   public void encodeId(MinecraftPacket packet, ByteBuf out, ProtocolVersion version) {
     try {
-      int packetId = Integer.MIN_VALUE;
+      ProtocolUtils.writeVarInt(out, this.getPacketId(packet.getClass(), version));
+      packet.encode(out, ProtocolUtils.Direction.CLIENTBOUND, version);
+    } catch (Throwable e) {
+      throw new ReflectionException(e);
+    }
+  }
+
+  public int getPacketId(Class<? extends MinecraftPacket> packetClass, ProtocolVersion version) {
+    int packetId = this.findPacketId(packetClass, version);
+    if (packetId == Integer.MIN_VALUE) {
+      throw new IllegalArgumentException(String.format(
+          "Unable to find id for packet of type %s in clientbound protocol %s.", packetClass.getName(), version));
+    }
+
+    return packetId;
+  }
+
+  public boolean hasPacketId(Class<? extends MinecraftPacket> packetClass, ProtocolVersion version) {
+    return this.findPacketId(packetClass, version) != Integer.MIN_VALUE;
+  }
+
+  @SuppressWarnings("unchecked")
+  private int findPacketId(Class<? extends MinecraftPacket> packetClass, ProtocolVersion version) {
+    int packetId = Integer.MIN_VALUE;
+    try {
       for (StateRegistry stateRegistry : this.stateRegistries) {
         StateRegistry.PacketRegistry packetRegistry = (StateRegistry.PacketRegistry) CLIENTBOUND_FIELD.invokeExact(stateRegistry);
         StateRegistry.PacketRegistry.ProtocolRegistry protocolRegistry
             = (StateRegistry.PacketRegistry.ProtocolRegistry) GET_PROTOCOL_REGISTRY.invokeExact(packetRegistry, version);
         Object2IntMap<Class<? extends MinecraftPacket>> classToId
             = (Object2IntMap<Class<? extends MinecraftPacket>>) PACKET_CLASS_TO_ID.invokeExact(protocolRegistry);
-        packetId = classToId.getInt(packet.getClass());
+        packetId = classToId.getInt(packetClass);
         if (packetId != Integer.MIN_VALUE) {
           break;
         }
       }
-
-      if (packetId == Integer.MIN_VALUE) {
-        throw new IllegalArgumentException(String.format(
-            "Unable to find id for packet of type %s in clientbound protocol %s.", packet.getClass().getName(), version));
-      }
-
-      ProtocolUtils.writeVarInt(out, packetId);
-      packet.encode(out, ProtocolUtils.Direction.CLIENTBOUND, version);
     } catch (Throwable e) {
       throw new ReflectionException(e);
     }
+
+    return packetId;
+  }
+
+  // Declares versions at which the wire format of the packet changes.
+  // Between two boundaries the packet is encoded only once if its id stays the same, see PreparedPacket#prepare.
+  public void registerVersionBoundaries(Class<? extends MinecraftPacket> packetClass, ProtocolVersion... boundaries) {
+    ProtocolVersion[] sortedBoundaries = boundaries.clone();
+    Arrays.sort(sortedBoundaries);
+    this.versionBoundaries.put(packetClass, sortedBoundaries);
+  }
+
+  public void unregisterVersionBoundaries(Class<? extends MinecraftPacket> packetClass) {
+    this.versionBoundaries.remove(packetClass);
+  }
+
+  public boolean hasVersionBoundaries(Class<? extends MinecraftPacket> packetClass) {
+    return this.versionBoundaries.containsKey(packetClass);
+  }
+
+  public boolean isEquivalent(Class<? extends MinecraftPacket> packetClass, ProtocolVersion first, ProtocolVersion second) {
+    ProtocolVersion[] boundaries = this.versionBoundaries.get(packetClass);
+    if (boundaries == null) {
+      return false;
+    }
+
+    ProtocolVersion from = first.compareTo(second) < 0 ? first : second;
+    ProtocolVersion to = first.compareTo(second) < 0 ? second : first;
+    if (from == to) {
+      return true;
+    }
+
+    // Compression framing differs between 1.7 and 1.8 regardless of the packet.
+    if (this.shouldCompress(from, this.enableCompression) != this.shouldCompress(to, this.enableCompression)) {
+      return false;
+    }
+
+    for (ProtocolVersion boundary : boundaries) {
+      if (boundary.compareTo(from) > 0 && boundary.compareTo(to) <= 0) {
+        return false;
+      }
+    }
+
+    return this.getPacketId(packetClass, from) == this.getPacketId(packetClass, to);
   }
 
   public ByteBuf compress(ByteBuf packetData, boolean enableCompression) {
+    CompressEvent event = new CompressEvent();
+    event.begin();
+    boolean recordMetrics = this.metrics.isEnabled();
+    long startTime = recordMetrics ? System.nanoTime() : 0L;
+    int uncompressedSize = packetData.readableBytes();
     ByteBuf networkPacket;
 
     try {
       if (enableCompression) {
-        networkPacket = (ByteBuf) ALLOCATE_COMPRESSED.invokeExact(this.getThreadLocalCompressionEncoder(), this.dummyContext, packetData, false);
-        HANDLE_COMPRESSED.invokeExact(this.getThreadLocalCompressionEncoder(), this.dummyContext, packetData, networkPacket);
+        MinecraftCompressorAndLengthEncoder encoder = this.getThreadLocalCompressionEncoder();
+        networkPacket = (ByteBuf) ALLOCATE_COMPRESSED.invokeExact(encoder, this.dummyContext, packetData, false);
+        HANDLE_COMPRESSED.invokeExact(encoder, this.dummyContext, packetData, networkPacket);
       } else {
         networkPacket = (ByteBuf) ALLOCATE_VARINT.invokeExact(MinecraftVarintLengthEncoder.INSTANCE, this.dummyContext, packetData, false);
         HANDLE_VARINT.invokeExact(MinecraftVarintLengthEncoder.INSTANCE, this.dummyContext, packetData, networkPacket);
@@ -204,9 +443,120 @@ public class PreparedPacketFactory {
     }
 
     packetData.release();
+
+    if (recordMetrics) {
+      this.metrics.recordCompress(enableCompression, uncompressedSize, networkPacket.readableBytes(), System.nanoTime() - startTime);
+    }
+
+    if (event.shouldCommit()) {
+      event.compressed = enableCompression;
+      event.uncompressedSize = uncompressedSize;
+      event.compressedSize = networkPacket.readableBytes();
+      event.commit();
+    }
+
     return networkPacket;
   }
 
+  // Frames every packet data buffer into one output buffer, using one compressor for the whole batch.
+  // Releases the packet data buffers.
+  public ByteBuf compressBatch(List<ByteBuf> packetData, boolean enableCompression, ByteBufAllocator alloc) {
+    try {
+      return this.frameBatch(packetData, enableCompression, alloc);
+    } finally {
+      for (ByteBuf data : packetData) {
+        data.release();
+      }
+    }
+  }
+
+  // Doesn't move the reader indexes of the packet data buffers, so the same batch can be framed twice.
+  private ByteBuf frameBatch(List<ByteBuf> packetData, boolean enableCompression, ByteBufAllocator alloc) {
+    CompressEvent event = new CompressEvent();
+    event.begin();
+    boolean recordMetrics = this.metrics.isEnabled();
+    long startTime = recordMetrics ? System.nanoTime() : 0L;
+    int uncompressedSize = 0;
+    for (ByteBuf data : packetData) {
+      uncompressedSize += data.readableBytes();
+    }
+
+    // Every packet needs at most 8 bytes for the headers, compressed packets may still ask for more while deflating.
+    int initialCapacity = uncompressedSize + packetData.size() * 8;
+    ByteBuf networkPacket = enableCompression && !DIRECT_BYTEBUF_PREFERRED_FOR_COMPRESSOR
+        ? alloc.heapBuffer(initialCapacity) : alloc.directBuffer(initialCapacity);
+
+    try {
+      VelocityCompressor compressor = null;
+      int threshold = 0;
+      if (enableCompression) {
+        MinecraftCompressorAndLengthEncoder encoder = this.getThreadLocalCompressionEncoder();
+        compressor = (VelocityCompressor) COMPRESSOR_FIELD.invokeExact(encoder);
+        // Same threshold as compress() uses, even if updateCompressor() is called meanwhile.
+        threshold = getEncoderThreshold(encoder);
+      }
+
+      for (ByteBuf data : packetData) {
+        int dataSize = data.readableBytes();
+        if (compressor == null) {
+          ProtocolUtils.writeVarInt(networkPacket, dataSize);
+          networkPacket.writeBytes(data, data.readerIndex(), dataSize);
+        } else if (dataSize < threshold) {
+          ProtocolUtils.writeVarInt(networkPacket, dataSize + 1);
+          ProtocolUtils.writeVarInt(networkPacket, 0);
+          networkPacket.writeBytes(data, data.readerIndex(), dataSize);
+        } else {
+          int lengthIndex = networkPacket.writerIndex();
+          networkPacket.writeMedium(0);
+          ProtocolUtils.writeVarInt(networkPacket, dataSize);
+          int startCompressed = networkPacket.writerIndex();
+          ByteBuf compatibleData = MoreByteBufUtils.ensureCompatible(alloc, compressor, data.duplicate());
+          try {
+            compressor.deflate(compatibleData, networkPacket);
+          } finally {
+            compatibleData.release();
+          }
+
+          if (networkPacket.writerIndex() - startCompressed >= 1 << 21) {
+            throw new DataFormatException("The server sent a very large (over 2MiB compressed) packet.");
+          }
+
+          set21BitVarInt(networkPacket, lengthIndex, networkPacket.writerIndex() - lengthIndex - 3);
+        }
+      }
+    } catch (Throwable e) {
+      networkPacket.release();
+      throw new ReflectionException(e);
+    }
+
+    if (recordMetrics) {
+      this.metrics.recordCompress(enableCompression, uncompressedSize, networkPacket.readableBytes(), System.nanoTime() - startTime);
+    }
+
+    if (event.shouldCommit()) {
+      event.compressed = enableCompression;
+      event.uncompressedSize = uncompressedSize;
+      event.compressedSize = networkPacket.readableBytes();
+      event.commit();
+    }
+
+    return networkPacket;
+  }
+
+  // Same as ProtocolUtils#write21BitVarInt, but in place.
+  private static void set21BitVarInt(ByteBuf buf, int index, int value) {
+    buf.setMedium(index, (value & 0x7F | 0x80) << 16 | ((value >>> 7) & 0x7F | 0x80) << 8 | (value >>> 14));
+  }
+
+  // Writes the shortest VarInt ending at the given index and moves the reader index to its start.
+  private static void setVarIntBefore(ByteBuf buf, int endIndex, int value) {
+    int startIndex = endIndex - (value < 1 << 7 ? 1 : value < 1 << 14 ? 2 : 3);
+    int writerIndex = buf.writerIndex();
+    buf.writerIndex(startIndex);
+    ProtocolUtils.writeVarInt(buf, value);
+    buf.setIndex(startIndex, writerIndex);
+  }
+
   public ByteBuf encodeSingle(MinecraftPacket packet, ProtocolVersion version) {
     return this.encodeSingle(packet, version, this.enableCompression);
   }
@@ -220,6 +570,137 @@ public class PreparedPacketFactory {
   }
 
   public ByteBuf encodeSingle(MinecraftPacket packet, ProtocolVersion version, boolean enableCompression, ByteBufAllocator alloc) {
+    return this.compress(this.encodePacketData(packet, version, enableCompression, alloc), this.shouldCompress(version, enableCompression));
+  }
+
+  // Encodes the packet right after a reserved length, so the frame is built in a single buffer.
+  // Only packets that have to be deflated are copied into a second one.
+  public ByteBuf encodeFramed(MinecraftPacket packet, ProtocolVersion version, boolean enableCompression, ByteBufAllocator alloc) {
+    boolean compress = this.shouldCompress(version, enableCompression);
+    ByteBuf networkPacket = compress && !DIRECT_BYTEBUF_PREFERRED_FOR_COMPRESSOR ? alloc.heapBuffer() : alloc.directBuffer();
+    int lengthIndex = networkPacket.writerIndex();
+    int dataIndex;
+    try {
+      networkPacket.writeMedium(0);
+      if (compress) {
+        // Zero data length means that the packet is not compressed.
+        networkPacket.writeByte(0);
+      }
+
+      dataIndex = networkPacket.writerIndex();
+      this.encodeId(packet, networkPacket, version);
+    } catch (RuntimeException e) {
+      networkPacket.release();
+      throw e;
+    }
+
+    int dataSize = networkPacket.writerIndex() - dataIndex;
+    int packetLength = networkPacket.writerIndex() - lengthIndex - 3;
+    if ((compress && dataSize >= getEncoderThreshold(this.getThreadLocalCompressionEncoder())) || packetLength >= 1 << 21) {
+      ByteBuf packetData = networkPacket.retainedSlice(dataIndex, dataSize);
+      try {
+        return this.compress(packetData, compress);
+      } catch (RuntimeException e) {
+        // compress() releases the packet data only on success.
+        packetData.release();
+        throw e;
+      } finally {
+        networkPacket.release();
+      }
+    }
+
+    // Velocity writes the shortest VarInt here, so it is placed right before the data and the unused reserved bytes are skipped.
+    setVarIntBefore(networkPacket, lengthIndex + 3, packetLength);
+    return networkPacket;
+  }
+
+  // Returns {compressed, uncompressed} framings of the same packet, the packet itself is encoded only once.
+  public ByteBuf[] encodeSingleWithUncompressed(MinecraftPacket packet, ProtocolVersion version) {
+    ByteBuf packetData = this.encodePacketData(packet, version, this.enableCompression, this.preparedPacketAllocator);
+    ByteBuf uncompressed;
+    ByteBuf packetDataDuplicate = packetData.retainedDuplicate();
+    try {
+      uncompressed = this.compress(packetDataDuplicate, false);
+    } catch (RuntimeException e) {
+      // compress() releases its input only on success.
+      packetDataDuplicate.release();
+      packetData.release();
+      throw e;
+    }
+
+    ByteBuf compressed;
+    if (this.shouldCompress(version, this.enableCompression)) {
+      try {
+        compressed = this.compress(packetData, true);
+      } catch (RuntimeException e) {
+        packetData.release();
+        uncompressed.release();
+        throw e;
+      }
+    } else {
+      packetData.release();
+      compressed = uncompressed.retainedDuplicate();
+    }
+
+    return new ByteBuf[] {compressed, uncompressed};
+  }
+
+  public ByteBuf encodeBatch(List<? extends MinecraftPacket> packets, ProtocolVersion version) {
+    return this.encodeBatch(packets, version, this.enableCompression, this.preparedPacketAllocator);
+  }
+
+  public ByteBuf encodeBatch(List<? extends MinecraftPacket> packets, ProtocolVersion version, ByteBufAllocator alloc) {
+    return this.encodeBatch(packets, version, this.enableCompression, alloc);
+  }
+
+  public ByteBuf encodeBatch(List<? extends MinecraftPacket> packets, ProtocolVersion version, boolean enableCompression, ByteBufAllocator alloc) {
+    return this.compressBatch(this.encodePacketData(packets, version, enableCompression, alloc), this.shouldCompress(version, enableCompression), alloc);
+  }
+
+  // Returns {compressed, uncompressed} framings of the same batch, every packet is encoded only once.
+  public ByteBuf[] encodeBatchWithUncompressed(List<? extends MinecraftPacket> packets, ProtocolVersion version) {
+    List<ByteBuf> packetData = this.encodePacketData(packets, version, this.enableCompression, this.preparedPacketAllocator);
+    try {
+      ByteBuf uncompressed = this.frameBatch(packetData, false, this.preparedPacketAllocator);
+      ByteBuf compressed;
+      if (this.shouldCompress(version, this.enableCompression)) {
+        try {
+          compressed = this.frameBatch(packetData, true, this.preparedPacketAllocator);
+        } catch (RuntimeException e) {
+          uncompressed.release();
+          throw e;
+        }
+      } else {
+        compressed = uncompressed.retainedDuplicate();
+      }
+
+      return new ByteBuf[] {compressed, uncompressed};
+    } finally {
+      for (ByteBuf data : packetData) {
+        data.release();
+      }
+    }
+  }
+
+  public List<ByteBuf> encodePacketData(List<? extends MinecraftPacket> packets, ProtocolVersion version,
+                                        boolean enableCompression, ByteBufAllocator alloc) {
+    List<ByteBuf> packetData = new ArrayList<>(packets.size());
+    try {
+      for (MinecraftPacket packet : packets) {
+        packetData.add(this.encodePacketData(packet, version, enableCompression, alloc));
+      }
+    } catch (RuntimeException e) {
+      for (ByteBuf data : packetData) {
+        data.release();
+      }
+
+      throw e;
+    }
+
+    return packetData;
+  }
+
+  public ByteBuf encodePacketData(MinecraftPacket packet, ProtocolVersion version, boolean enableCompression, ByteBufAllocator alloc) {
     ByteBuf packetData;
 
     if (enableCompression) {
@@ -230,14 +711,25 @@ public class PreparedPacketFactory {
       packetData = alloc.directBuffer();
     }
 
-    this.encodeId(packet, packetData, version);
+    try {
+      this.encodeId(packet, packetData, version);
+    } catch (RuntimeException e) {
+      packetData.release();
+      throw e;
+    }
+
+    return packetData;
+  }
 
-    return this.compress(packetData, version.compareTo(ProtocolVersion.MINECRAFT_1_8) >= 0 && enableCompression);
+  public boolean shouldCompress(ProtocolVersion version, boolean enableCompression) {
+    return version.compareTo(ProtocolVersion.MINECRAFT_1_8) >= 0 && enableCompression;
   }
 
   public void inject(Player player, MinecraftConnection connection, ChannelPipeline pipeline) {
-    pipeline.addAfter(Connections.MINECRAFT_ENCODER, PREPARED_ENCODER,
-        new PreparedPacketEncoder(this, connection.getProtocolVersion(), player.isOnlineMode()));
+    PreparedPacketEncoder encoder = this.fusedEncoder
+        ? new FusedPacketEncoder(this, connection.getProtocolVersion(), player.isOnlineMode())
+        : new PreparedPacketEncoder(this, connection.getProtocolVersion(), player.isOnlineMode());
+    pipeline.addAfter(Connections.MINECRAFT_ENCODER, PREPARED_ENCODER, encoder);
     pipeline.addFirst(COMPRESSION_HANDLER, new CompressionEventHandler(this));
   }
 
@@ -256,6 +748,52 @@ public class PreparedPacketFactory {
     return this.saveUncompressed;
   }
 
+  public PreparedPacketMetrics getMetrics() {
+    return this.metrics;
+  }
+
+  public void setMetrics(PreparedPacketMetrics metrics) {
+    this.metrics = metrics == null ? PreparedPacketMetrics.NOOP : metrics;
+  }
+
+  public boolean shouldBatchEncoderWrites() {
+    return this.batchEncoderWrites;
+  }
+
+  // Affects only encoders injected after the call.
+  public void setBatchEncoderWrites(boolean batchEncoderWrites) {
+    this.batchEncoderWrites = batchEncoderWrites;
+  }
+
+  public boolean shouldUseFusedEncoder() {
+    return this.fusedEncoder;
+  }
+
+  // Affects only encoders injected after the call.
+  // The fused encoder frames relayed packets with this factory's compression settings, so it should be configured with
+  // the same compression threshold as Velocity. Packets of connections whose live compression state or threshold
+  // doesn't match the factory are left to Velocity's encoders.
+  public void setUseFusedEncoder(boolean fusedEncoder) {
+    this.fusedEncoder = fusedEncoder;
+  }
+
+  public boolean isCompressionEnabled() {
+    return this.enableCompression;
+  }
+
+  public int getCompressionThreshold() {
+    return this.compressionThreshold;
+  }
+
+  // Velocity changes the threshold of an existing encoder in place, so it should be read on every use.
+  public static int getEncoderThreshold(MinecraftCompressorAndLengthEncoder encoder) {
+    try {
+      return (int) THRESHOLD_FIELD.invokeExact(encoder);
+    } catch (Throwable e) {
+      throw new ReflectionException(e);
+    }
+  }
+
   public ByteBufAllocator getPreparedPacketAllocator() {
     return this.preparedPacketAllocator;
   }
@@ -267,4 +805,16 @@ public class PreparedPacketFactory {
   public void addStateRegistry(StateRegistry stateRegistry) {
     this.stateRegistries.add(stateRegistry);
   }
+
+  // The native compressor doesn't expose its level, so it is kept next to the encoder.
+  private static final class ThreadCompressionEncoder {
+
+    private final MinecraftCompressorAndLengthEncoder encoder;
+    private final int level;
+
+    private ThreadCompressionEncoder(MinecraftCompressorAndLengthEncoder encoder, int level) {
+      this.encoder = encoder;
+      this.level = level;
+    }
+  }
 }
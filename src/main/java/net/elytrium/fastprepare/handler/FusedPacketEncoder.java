@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2021 - 2023 Elytrium
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.elytrium.fastprepare.handler;
+
+import com.velocitypowered.api.network.ProtocolVersion;
+import com.velocitypowered.proxy.network.Connections;
+import com.velocitypowered.proxy.protocol.MinecraftPacket;
+import com.velocitypowered.proxy.protocol.netty.MinecraftCompressorAndLengthEncoder;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.util.ReferenceCountUtil;
+import java.util.function.Function;
+import net.elytrium.fastprepare.PreparedPacketFactory;
+import net.elytrium.fastprepare.metrics.EncoderWriteType;
+
+// Encodes, compresses and frames every outbound packet by itself, so Velocity's minecraft, frame and compression encoders are skipped.
+// Velocity's handlers are left in the pipeline, as Velocity keeps reconfiguring them, and are still used for packets
+// that are not registered in the factory, and for connections compressed differently than the factory expects.
+// Velocity's MinecraftEncoder releases the packets it encodes, so packets passed on to it are retained first:
+// the caller keeps the ownership of the packets whichever encoder handles them.
+public class FusedPacketEncoder extends PreparedPacketEncoder {
+
+  private ChannelHandlerContext outputContext;
+
+  public FusedPacketEncoder(PreparedPacketFactory factory, ProtocolVersion protocolVersion, boolean shouldCopy) {
+    super(factory, protocolVersion, shouldCopy);
+  }
+
+  public FusedPacketEncoder(PreparedPacketFactory factory, ProtocolVersion protocolVersion, Function<ByteBuf, ByteBuf> duplicateFunction) {
+    super(factory, protocolVersion, duplicateFunction);
+  }
+
+  @Override
+  public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) {
+    if (this.getOutputContext(ctx) == ctx) {
+      // Nothing frames the packets down the pipeline, so they are framed as the base encoder does it.
+      super.write(ctx, msg, promise);
+    } else if (msg instanceof ByteBuf) {
+      // Raw packets relayed from the backend server, they contain id and body only.
+      this.writePending(ctx);
+      this.factory.getMetrics().recordEncoderWrite(EncoderWriteType.OTHER);
+      if (this.canFrame(ctx)) {
+        this.writeEncoded(ctx, this.factory.compress((ByteBuf) msg, this.shouldCompress()), promise);
+      } else {
+        ctx.write(msg, promise);
+      }
+    } else if (msg instanceof MinecraftPacket) {
+      MinecraftPacket packet = (MinecraftPacket) msg;
+      if (!this.factory.hasPacketId(packet.getClass(), this.protocolVersion) || !this.canFrame(ctx)) {
+        this.writePending(ctx);
+        this.factory.getMetrics().recordEncoderWrite(EncoderWriteType.OTHER);
+        ctx.write(ReferenceCountUtil.retain(packet), promise);
+      } else if (this.batchWrites) {
+        super.write(ctx, msg, promise);
+      } else {
+        this.writePending(ctx);
+        this.factory.getMetrics().recordEncoderWrite(this.shouldSendUncompressed
+            ? EncoderWriteType.MINECRAFT_PACKET_UNCOMPRESSED : EncoderWriteType.MINECRAFT_PACKET);
+        this.writeEncoded(ctx, this.factory.encodeFramed(packet, this.protocolVersion, this.shouldCompress(), ctx.alloc()), promise);
+      }
+    } else {
+      super.write(ctx, msg, promise);
+    }
+  }
+
+  // Packets are framed here only if the result is the same as Velocity's: the connection should be compressed exactly
+  // when the factory expects it to be, and with the factory's threshold. Otherwise Velocity's encoders frame them.
+  private boolean canFrame(ChannelHandlerContext ctx) {
+    ChannelHandlerContext outputContext = this.getOutputContext(ctx);
+    if (outputContext.handler() instanceof MinecraftCompressorAndLengthEncoder) {
+      return this.shouldCompress()
+          && PreparedPacketFactory.getEncoderThreshold((MinecraftCompressorAndLengthEncoder) outputContext.handler())
+          == this.factory.getCompressionThreshold();
+    } else {
+      return !this.shouldCompress();
+    }
+  }
+
+  @Override
+  protected void writeEncoded(ChannelHandlerContext ctx, ByteBuf buf, ChannelPromise promise) {
+    this.getOutputContext(ctx).write(buf, promise);
+  }
+
+  @Override
+  public void setShouldSendUncompressed(boolean shouldSendUncompressed) {
+    super.setShouldSendUncompressed(shouldSendUncompressed);
+    // Velocity replaces the frame encoder with the compression encoder and vice versa right before this call.
+    this.outputContext = null;
+  }
+
+  private boolean shouldCompress() {
+    return this.factory.shouldCompress(this.protocolVersion, !this.shouldSendUncompressed && this.factory.isCompressionEnabled());
+  }
+
+  // Writing from the context of the frame (or compression) encoder skips it and all the handlers between, but keeps the cipher.
+  private ChannelHandlerContext getOutputContext(ChannelHandlerContext ctx) {
+    if (this.outputContext == null || this.outputContext.isRemoved()) {
+      ChannelHandlerContext frameContext = ctx.pipeline().context(Connections.COMPRESSION_ENCODER);
+      if (frameContext == null) {
+        frameContext = ctx.pipeline().context(Connections.FRAME_ENCODER);
+      }
+
+      this.outputContext = frameContext == null ? ctx : frameContext;
+    }
+
+    return this.outputContext;
+  }
+}
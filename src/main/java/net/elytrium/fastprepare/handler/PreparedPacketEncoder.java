@@ -23,22 +23,37 @@ import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelOutboundHandlerAdapter;
 import io.netty.channel.ChannelPromise;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.PromiseNotifier;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.function.Function;
 import net.elytrium.fastprepare.PreparedPacket;
 import net.elytrium.fastprepare.PreparedPacketFactory;
 import net.elytrium.fastprepare.dummy.DummyPacket;
+import net.elytrium.fastprepare.metrics.EncoderWriteType;
 
+// Like the rest of FastPrepare, the encoder never takes the ownership of the packets written to it,
+// the caller should release them as usual.
 public class PreparedPacketEncoder extends ChannelOutboundHandlerAdapter {
 
-  private final PreparedPacketFactory factory;
-  private final ProtocolVersion protocolVersion;
+  protected final PreparedPacketFactory factory;
+  protected final ProtocolVersion protocolVersion;
+  protected final boolean batchWrites;
   private final Function<ByteBuf, ByteBuf> duplicateFunction;
-  private boolean shouldSendUncompressed;
+  // Online mode connections are encrypted in place, so they get their own copies instead of views of shared memory.
+  private final boolean usePinnedViews;
+  private final List<MinecraftPacket> pendingPackets = new ArrayList<>();
+  private final List<ChannelPromise> pendingPromises = new ArrayList<>();
+  private ChannelHandlerContext ctx;
+  protected boolean shouldSendUncompressed;
 
   public PreparedPacketEncoder(PreparedPacketFactory factory, ProtocolVersion protocolVersion, boolean shouldCopy) {
     this.factory = factory;
     this.protocolVersion = protocolVersion;
     this.duplicateFunction = shouldCopy ? ByteBuf::copy : ByteBuf::retainedDuplicate;
+    this.usePinnedViews = !shouldCopy;
+    this.batchWrites = this.factory.shouldBatchEncoderWrites();
     this.shouldSendUncompressed = this.factory.shouldSaveUncompressed();
   }
 
@@ -46,15 +61,39 @@ public class PreparedPacketEncoder extends ChannelOutboundHandlerAdapter {
     this.factory = factory;
     this.protocolVersion = protocolVersion;
     this.duplicateFunction = duplicateFunction;
+    // There is no way to tell whether a custom function copies, so it is always used.
+    this.usePinnedViews = false;
+    this.batchWrites = this.factory.shouldBatchEncoderWrites();
     this.shouldSendUncompressed = this.factory.shouldSaveUncompressed();
   }
 
+  @Override
+  public void handlerAdded(ChannelHandlerContext ctx) {
+    this.ctx = ctx;
+  }
+
+  @Override
+  public void handlerRemoved(ChannelHandlerContext ctx) {
+    this.writePending(ctx);
+  }
+
   @Override
   public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) {
     if (msg instanceof DummyPacket) {
+      this.factory.getMetrics().recordEncoderWrite(EncoderWriteType.DUMMY);
       return;
     }
 
+    if (this.batchWrites && msg instanceof MinecraftPacket) {
+      this.factory.getMetrics().recordEncoderWrite(this.shouldSendUncompressed
+          ? EncoderWriteType.MINECRAFT_PACKET_UNCOMPRESSED : EncoderWriteType.MINECRAFT_PACKET);
+      // The caller keeps the ownership of the packet, so it is retained until the batch is encoded.
+      this.pendingPackets.add(ReferenceCountUtil.retain((MinecraftPacket) msg));
+      this.pendingPromises.add(promise);
+      return;
+    }
+
+    this.writePending(ctx);
     if (msg instanceof PreparedPacket) {
       PreparedPacket preparedPacket = (PreparedPacket) msg;
       ByteBuf cachedPacket = (this.shouldSendUncompressed)
@@ -64,19 +103,103 @@ public class PreparedPacketEncoder extends ChannelOutboundHandlerAdapter {
         throw new IllegalStateException("Current PreparedPacket is not prepared for " + this.protocolVersion);
       }
 
-      ctx.write(this.duplicateFunction.apply(cachedPacket), promise);
+      this.factory.getMetrics().recordEncoderWrite(this.shouldSendUncompressed ? EncoderWriteType.PREPARED_UNCOMPRESSED : EncoderWriteType.PREPARED);
+      if (this.usePinnedViews && preparedPacket.isPinned()) {
+        // The view is tracked through the promise, so a void one can't be used here.
+        ChannelPromise writePromise = promise.unvoid();
+        this.writeEncoded(ctx, preparedPacket.getPinnedView(cachedPacket, ctx.executor(), writePromise), writePromise);
+      } else {
+        this.writeEncoded(ctx, this.duplicateFunction.apply(cachedPacket), promise);
+      }
     } else if (msg instanceof MinecraftPacket) {
       if (this.shouldSendUncompressed) {
-        ctx.write(this.factory.encodeSingle((MinecraftPacket) msg, this.protocolVersion, false, ctx.alloc()), promise);
+        this.factory.getMetrics().recordEncoderWrite(EncoderWriteType.MINECRAFT_PACKET_UNCOMPRESSED);
+        this.writeEncoded(ctx, this.factory.encodeSingle((MinecraftPacket) msg, this.protocolVersion, false, ctx.alloc()), promise);
       } else {
-        ctx.write(this.factory.encodeSingle((MinecraftPacket) msg, this.protocolVersion, ctx.alloc()), promise);
+        this.factory.getMetrics().recordEncoderWrite(EncoderWriteType.MINECRAFT_PACKET);
+        this.writeEncoded(ctx, this.factory.encodeSingle((MinecraftPacket) msg, this.protocolVersion, ctx.alloc()), promise);
       }
     } else {
+      this.factory.getMetrics().recordEncoderWrite(EncoderWriteType.OTHER);
       ctx.write(msg, promise);
     }
   }
 
+  @Override
+  public void flush(ChannelHandlerContext ctx) {
+    this.writePending(ctx);
+    ctx.flush();
+  }
+
+  @Override
+  public void close(ChannelHandlerContext ctx, ChannelPromise promise) {
+    this.writePending(ctx);
+    ctx.close(promise);
+  }
+
+  // Called for buffers that are already framed and compressed.
+  protected void writeEncoded(ChannelHandlerContext ctx, ByteBuf buf, ChannelPromise promise) {
+    ctx.write(buf, promise);
+  }
+
+  // Packets written without a flush in between are encoded one by one and compressed as one batch into a single buffer.
+  // A packet that fails to encode fails only its own promise, the rest of the batch is still sent.
+  protected void writePending(ChannelHandlerContext ctx) {
+    if (this.pendingPackets.isEmpty()) {
+      return;
+    }
+
+    // Promise listeners may write again, so the queue is emptied before anything is notified.
+    List<MinecraftPacket> packets = new ArrayList<>(this.pendingPackets);
+    List<ChannelPromise> pendingPromises = new ArrayList<>(this.pendingPromises);
+    this.pendingPackets.clear();
+    this.pendingPromises.clear();
+
+    boolean enableCompression = !this.shouldSendUncompressed && this.factory.isCompressionEnabled();
+    List<ByteBuf> packetData = new ArrayList<>(packets.size());
+    List<ChannelPromise> promises = new ArrayList<>(packets.size());
+    for (int i = 0; i < packets.size(); i++) {
+      MinecraftPacket packet = packets.get(i);
+      try {
+        packetData.add(this.factory.encodePacketData(packet, this.protocolVersion, enableCompression, ctx.alloc()));
+        promises.add(pendingPromises.get(i));
+      } catch (Throwable e) {
+        pendingPromises.get(i).tryFailure(e);
+      } finally {
+        ReferenceCountUtil.release(packet);
+      }
+    }
+
+    if (packetData.isEmpty()) {
+      return;
+    }
+
+    ByteBuf buf;
+    try {
+      buf = this.factory.compressBatch(packetData, this.factory.shouldCompress(this.protocolVersion, enableCompression), ctx.alloc());
+    } catch (Throwable e) {
+      for (ChannelPromise promise : promises) {
+        promise.tryFailure(e);
+      }
+
+      return;
+    }
+
+    if (promises.size() == 1) {
+      this.writeEncoded(ctx, buf, promises.get(0));
+    } else {
+      ChannelPromise batchPromise = ctx.newPromise();
+      batchPromise.addListener(new PromiseNotifier<>(false, promises.toArray(new ChannelPromise[0])));
+      this.writeEncoded(ctx, buf, batchPromise);
+    }
+  }
+
   public void setShouldSendUncompressed(boolean shouldSendUncompressed) {
+    // Packets written before the compression switch should be framed as before.
+    if (this.ctx != null) {
+      this.writePending(this.ctx);
+    }
+
     this.shouldSendUncompressed = shouldSendUncompressed;
   }
 }
@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2021 - 2023 Elytrium
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.elytrium.fastprepare.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("net.elytrium.fastprepare.Compress")
+@Label("Compress Packet")
+@Description("Compression and framing of a single encoded packet")
+@Category("FastPrepare")
+@Enabled(false)
+@StackTrace(false)
+public class CompressEvent extends Event {
+
+  @Label("Compressed")
+  public boolean compressed;
+
+  @Label("Uncompressed Size")
+  @DataAmount
+  public int uncompressedSize;
+
+  @Label("Compressed Size")
+  @DataAmount
+  public int compressedSize;
+}
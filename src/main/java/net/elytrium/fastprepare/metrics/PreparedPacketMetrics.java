@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2021 - 2023 Elytrium
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.elytrium.fastprepare.metrics;
+
+public interface PreparedPacketMetrics {
+
+  PreparedPacketMetrics NOOP = new PreparedPacketMetrics() {
+    @Override
+    public boolean isEnabled() {
+      return false;
+    }
+  };
+
+  // Timings are only measured when this returns true, so disabled metrics don't even call System.nanoTime().
+  default boolean isEnabled() {
+    return true;
+  }
+
+  default void recordPrepare(long durationNanos, int encodedVersions, long encodedBytes) {
+
+  }
+
+  default void recordCompress(boolean compressed, int uncompressedBytes, int compressedBytes, long durationNanos) {
+
+  }
+
+  default void recordBuild(long retainedBytes, int dedupHits) {
+
+  }
+
+  default void recordCompressorCreated() {
+
+  }
+
+  default void recordCompressorReleased() {
+
+  }
+
+  default void recordEncoderWrite(EncoderWriteType type) {
+
+  }
+
+  default void recordSharedLookup(boolean hit) {
+
+  }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2021 - 2023 Elytrium
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.elytrium.fastprepare.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+public class SimplePreparedPacketMetrics implements PreparedPacketMetrics {
+
+  private final LongAdder prepareCount = new LongAdder();
+  private final LongAdder prepareNanos = new LongAdder();
+  private final LongAdder preparedVersions = new LongAdder();
+  private final LongAdder preparedBytes = new LongAdder();
+  private final LongAdder compressCount = new LongAdder();
+  private final LongAdder compressNanos = new LongAdder();
+  private final LongAdder uncompressedBytes = new LongAdder();
+  private final LongAdder compressedBytes = new LongAdder();
+  private final LongAdder buildCount = new LongAdder();
+  private final LongAdder retainedBytes = new LongAdder();
+  private final LongAdder dedupHits = new LongAdder();
+  // Totals only, the number of live compressors is reported by PreparedPacketFactory#getCompressorCount,
+  // as compressors may already exist when the metrics are installed.
+  private final LongAdder compressorsCreated = new LongAdder();
+  private final LongAdder compressorsReleased = new LongAdder();
+  private final LongAdder[] encoderWrites = new LongAdder[EncoderWriteType.values().length];
+  private final LongAdder sharedHits = new LongAdder();
+  private final LongAdder sharedMisses = new LongAdder();
+
+  public SimplePreparedPacketMetrics() {
+    for (int i = 0; i < this.encoderWrites.length; i++) {
+      this.encoderWrites[i] = new LongAdder();
+    }
+  }
+
+  @Override
+  public void recordPrepare(long durationNanos, int encodedVersions, long encodedBytes) {
+    this.prepareCount.increment();
+    this.prepareNanos.add(durationNanos);
+    this.preparedVersions.add(encodedVersions);
+    this.preparedBytes.add(encodedBytes);
+  }
+
+  @Override
+  public void recordCompress(boolean compressed, int uncompressedBytes, int compressedBytes, long durationNanos) {
+    if (compressed) {
+      this.compressCount.increment();
+      this.compressNanos.add(durationNanos);
+      this.uncompressedBytes.add(uncompressedBytes);
+      this.compressedBytes.add(compressedBytes);
+    }
+  }
+
+  @Override
+  public void recordBuild(long retainedBytes, int dedupHits) {
+    this.buildCount.increment();
+    this.retainedBytes.add(retainedBytes);
+    this.dedupHits.add(dedupHits);
+  }
+
+  @Override
+  public void recordCompressorCreated() {
+    this.compressorsCreated.increment();
+  }
+
+  @Override
+  public void recordCompressorReleased() {
+    this.compressorsReleased.increment();
+  }
+
+  @Override
+  public void recordEncoderWrite(EncoderWriteType type) {
+    this.encoderWrites[type.ordinal()].increment();
+  }
+
+  @Override
+  public void recordSharedLookup(boolean hit) {
+    if (hit) {
+      this.sharedHits.increment();
+    } else {
+      this.sharedMisses.increment();
+    }
+  }
+
+  public long getPrepareCount() {
+    return this.prepareCount.sum();
+  }
+
+  public long getPrepareNanos() {
+    return this.prepareNanos.sum();
+  }
+
+  public long getPreparedVersions() {
+    return this.preparedVersions.sum();
+  }
+
+  public long getPreparedBytes() {
+    return this.preparedBytes.sum();
+  }
+
+  public long getCompressCount() {
+    return this.compressCount.sum();
+  }
+
+  public long getCompressNanos() {
+    return this.compressNanos.sum();
+  }
+
+  public long getUncompressedBytes() {
+    return this.uncompressedBytes.sum();
+  }
+
+  public long getCompressedBytes() {
+    return this.compressedBytes.sum();
+  }
+
+  public double getCompressionRatio() {
+    long uncompressed = this.uncompressedBytes.sum();
+    return uncompressed == 0 ? 1.0 : (double) this.compressedBytes.sum() / uncompressed;
+  }
+
+  public long getBuildCount() {
+    return this.buildCount.sum();
+  }
+
+  public long getRetainedBytes() {
+    return this.retainedBytes.sum();
+  }
+
+  public long getDedupHits() {
+    return this.dedupHits.sum();
+  }
+
+  public long getCompressorsCreated() {
+    return this.compressorsCreated.sum();
+  }
+
+  public long getCompressorsReleased() {
+    return this.compressorsReleased.sum();
+  }
+
+  public long getEncoderWrites(EncoderWriteType type) {
+    return this.encoderWrites[type.ordinal()].sum();
+  }
+
+  public long getSharedHits() {
+    return this.sharedHits.sum();
+  }
+
+  public long getSharedMisses() {
+    return this.sharedMisses.sum();
+  }
+
+  public void reset() {
+    this.prepareCount.reset();
+    this.prepareNanos.reset();
+    this.preparedVersions.reset();
+    this.preparedBytes.reset();
+    this.compressCount.reset();
+    this.compressNanos.reset();
+    this.uncompressedBytes.reset();
+    this.compressedBytes.reset();
+    this.buildCount.reset();
+    this.retainedBytes.reset();
+    this.dedupHits.reset();
+    this.compressorsCreated.reset();
+    this.compressorsReleased.reset();
+    for (LongAdder encoderWrite : this.encoderWrites) {
+      encoderWrite.reset();
+    }
+
+    this.sharedHits.reset();
+    this.sharedMisses.reset();
+  }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2021 - 2023 Elytrium
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.elytrium.fastprepare;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.velocitypowered.api.network.ProtocolVersion;
+import com.velocitypowered.proxy.connection.MinecraftSessionHandler;
+import com.velocitypowered.proxy.protocol.MinecraftPacket;
+import com.velocitypowered.proxy.protocol.ProtocolUtils;
+import com.velocitypowered.proxy.protocol.packet.PluginMessage;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.embedded.EmbeddedChannel;
+import java.io.ByteArrayOutputStream;
+import net.elytrium.commons.utils.reflection.ReflectionException;
+import net.elytrium.fastprepare.handler.PreparedPacketEncoder;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+// Batched packets stay owned by the caller, and a packet that can't be encoded shouldn't take the rest of the batch down with it.
+class BatchedWritesTest {
+
+  private PreparedPacketFactory factory;
+  private ByteBuf payload;
+
+  @BeforeEach
+  void setUp() {
+    this.factory = TestPackets.createFactory(true, false);
+    this.factory.setBatchEncoderWrites(true);
+    this.payload = TestPackets.createPayload(TestPackets.COMPRESSION_THRESHOLD * 4);
+  }
+
+  @AfterEach
+  void tearDown() {
+    this.payload.release();
+    this.factory.releaseThread(Thread.currentThread());
+  }
+
+  @Test
+  void testFailingPacketFailsOnlyItsPromise() {
+    ProtocolVersion version = ProtocolVersion.MAXIMUM_VERSION;
+    EmbeddedChannel channel = new EmbeddedChannel(new PreparedPacketEncoder(this.factory, version, false));
+    // Own copies of the payload, as duplicates share the reference count of the payload.
+    PluginMessage first = new PluginMessage(TestPackets.CHANNEL, this.payload.copy());
+    PluginMessage second = new PluginMessage(TestPackets.CHANNEL, this.payload.copy());
+    try {
+      ChannelFuture firstFuture = channel.write(first);
+      ChannelFuture failingFuture = channel.write(new UnregisteredPacket());
+      ChannelFuture secondFuture = channel.write(second);
+      // The caller keeps the ownership, so the queued packets can be released before the flush.
+      first.release();
+      second.release();
+      assertEquals(1, first.refCnt(), "Batched packet was not retained");
+      assertEquals(1, second.refCnt(), "Batched packet was not retained");
+      channel.flush();
+
+      assertTrue(firstFuture.isSuccess());
+      assertTrue(secondFuture.isSuccess());
+      assertFalse(failingFuture.isSuccess());
+      assertTrue(failingFuture.cause() instanceof ReflectionException);
+      assertEquals(0, first.refCnt(), "Batched packet was not released after the flush");
+      assertEquals(0, second.refCnt(), "Batched packet was not released after the flush");
+
+      ByteArrayOutputStream expected = new ByteArrayOutputStream();
+      expected.writeBytes(FramingTest.encodeWithVelocity(this.payload, version, true));
+      expected.writeBytes(FramingTest.encodeWithVelocity(this.payload, version, true));
+      assertArrayEquals(expected.toByteArray(), TestPackets.getBytesAndRelease(channel.readOutbound()));
+    } finally {
+      channel.finishAndReleaseAll();
+    }
+  }
+
+  private static final class UnregisteredPacket implements MinecraftPacket {
+
+    @Override
+    public void decode(ByteBuf buf, ProtocolUtils.Direction direction, ProtocolVersion protocolVersion) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void encode(ByteBuf buf, ProtocolUtils.Direction direction, ProtocolVersion protocolVersion) {
+
+    }
+
+    @Override
+    public boolean handle(MinecraftSessionHandler handler) {
+      return false;
+    }
+  }
+}
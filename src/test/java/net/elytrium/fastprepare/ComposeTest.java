@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2021 - 2023 Elytrium
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.elytrium.fastprepare;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.velocitypowered.api.network.ProtocolVersion;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+// Composed packets should stay readable after their parts are released, even though the parts share deduplicated buffers
+// between versions, and should free the parts' buffers when released themselves.
+class ComposeTest {
+
+  private PreparedPacketFactory factory;
+  private ByteBuf smallPayload;
+  private ByteBuf largePayload;
+
+  @BeforeEach
+  void setUp() {
+    this.factory = TestPackets.createFactory(true, true);
+    this.smallPayload = TestPackets.createPayload(16);
+    // Large enough to be compressed, so compressed and uncompressed variants differ.
+    this.largePayload = TestPackets.createPayload(TestPackets.COMPRESSION_THRESHOLD * 16);
+  }
+
+  @AfterEach
+  void tearDown() {
+    this.smallPayload.release();
+    this.largePayload.release();
+    this.factory.releaseThread(Thread.currentThread());
+  }
+
+  @Test
+  void testComposedOutlivesParts() {
+    PreparedPacket first = this.factory.createPreparedPacket(ProtocolVersion.MINIMUM_VERSION, ProtocolVersion.MAXIMUM_VERSION)
+        .prepare((version) -> TestPackets.createPacket(this.smallPayload))
+        .build();
+    PreparedPacket second = this.factory.createPreparedPacket(ProtocolVersion.MINIMUM_VERSION, ProtocolVersion.MAXIMUM_VERSION)
+        .prepare((version) -> TestPackets.createPacket(this.largePayload))
+        .build();
+
+    EnumSet<ProtocolVersion> versions = EnumSet.range(ProtocolVersion.MINIMUM_VERSION, ProtocolVersion.MAXIMUM_VERSION);
+    Map<ProtocolVersion, byte[]> expected = new EnumMap<>(ProtocolVersion.class);
+    Map<ProtocolVersion, byte[]> expectedUncompressed = new EnumMap<>(ProtocolVersion.class);
+    Set<ByteBuf> partBuffers = Collections.newSetFromMap(new IdentityHashMap<>());
+    for (ProtocolVersion version : versions) {
+      expected.put(version, concat(first.getPackets(version), second.getPackets(version)));
+      expectedUncompressed.put(version, concat(first.getUncompressedPackets(version), second.getUncompressedPackets(version)));
+      Collections.addAll(partBuffers, first.getPackets(version), second.getPackets(version),
+          first.getUncompressedPackets(version), second.getUncompressedPackets(version));
+    }
+
+    assertTrue(partBuffers.size() < versions.size() * 4, "Parts should share deduplicated buffers between versions");
+
+    PreparedPacket composed = this.factory.createComposedPreparedPacket(first, second);
+    first.release();
+    second.release();
+
+    for (ByteBuf buf : partBuffers) {
+      assertTrue(buf.refCnt() > 0, "Buffer of a released part was freed while the composed packet still uses it");
+    }
+
+    for (ProtocolVersion version : versions) {
+      assertArrayEquals(expected.get(version), ByteBufUtil.getBytes(composed.getPackets(version)), version.toString());
+      assertArrayEquals(expectedUncompressed.get(version), ByteBufUtil.getBytes(composed.getUncompressedPackets(version)), version.toString());
+    }
+
+    composed.release();
+    for (ByteBuf buf : partBuffers) {
+      assertEquals(0, buf.refCnt(), "Buffer of a part is leaked after all the packets were released");
+    }
+  }
+
+  @Test
+  void testVersionsMissingInPartsAreLeftEmpty() {
+    PreparedPacket first = this.factory.createPreparedPacket(ProtocolVersion.MINIMUM_VERSION, ProtocolVersion.MAXIMUM_VERSION)
+        .prepare((version) -> TestPackets.createPacket(this.smallPayload))
+        .build();
+    PreparedPacket second = this.factory.createPreparedPacket(ProtocolVersion.MINIMUM_VERSION, ProtocolVersion.MAXIMUM_VERSION)
+        .prepare((version) -> TestPackets.createPacket(this.largePayload), ProtocolVersion.MINECRAFT_1_13)
+        .build();
+
+    PreparedPacket composed = this.factory.createComposedPreparedPacket(first, second);
+    try {
+      for (ProtocolVersion version : EnumSet.range(ProtocolVersion.MINIMUM_VERSION, ProtocolVersion.MAXIMUM_VERSION)) {
+        if (version.compareTo(ProtocolVersion.MINECRAFT_1_13) < 0) {
+          assertNull(composed.getPackets(version), version.toString());
+          assertNull(composed.getUncompressedPackets(version), version.toString());
+        } else {
+          assertArrayEquals(concat(first.getPackets(version), second.getPackets(version)),
+              ByteBufUtil.getBytes(composed.getPackets(version)), version.toString());
+        }
+      }
+    } finally {
+      first.release();
+      second.release();
+      composed.release();
+    }
+  }
+
+  private static byte[] concat(ByteBuf first, ByteBuf second) {
+    byte[] result = new byte[first.readableBytes() + second.readableBytes()];
+    first.getBytes(first.readerIndex(), result, 0, first.readableBytes());
+    second.getBytes(second.readerIndex(), result, first.readableBytes(), second.readableBytes());
+    return result;
+  }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2021 - 2023 Elytrium
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.elytrium.fastprepare;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.velocitypowered.api.network.ProtocolVersion;
+import com.velocitypowered.proxy.protocol.packet.PluginMessage;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import java.util.EnumSet;
+import net.elytrium.fastprepare.metrics.SimplePreparedPacketMetrics;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+// Versions skipped thanks to the registered boundaries should get exactly the bytes they would get if encoded on their own.
+class EquivalenceTest {
+
+  private final SimplePreparedPacketMetrics metrics = new SimplePreparedPacketMetrics();
+  private PreparedPacketFactory factory;
+  private ByteBuf payload;
+
+  @BeforeEach
+  void setUp() {
+    this.payload = TestPackets.createPayload(TestPackets.COMPRESSION_THRESHOLD * 4);
+  }
+
+  @AfterEach
+  void tearDown() {
+    this.payload.release();
+    this.factory.releaseThread(Thread.currentThread());
+  }
+
+  @ParameterizedTest
+  @ValueSource(booleans = {true, false})
+  void testSkippedVersionsMatchEncodedOnes(boolean enableCompression) {
+    this.factory = TestPackets.createFactory(enableCompression, true);
+    // PluginMessage writes its data differently up to 1.7.6 and its channel differently since 1.13,
+    // its id changes between these boundaries and has to be checked by the factory itself.
+    this.factory.registerVersionBoundaries(PluginMessage.class, ProtocolVersion.MINECRAFT_1_8, ProtocolVersion.MINECRAFT_1_13);
+    assertNotEquals(this.factory.getPacketId(PluginMessage.class, ProtocolVersion.MINECRAFT_1_13),
+        this.factory.getPacketId(PluginMessage.class, ProtocolVersion.MINECRAFT_1_14));
+
+    this.factory.setMetrics(this.metrics);
+    PluginMessage packet = TestPackets.createPacket(this.payload);
+    PreparedPacket skipped;
+    try {
+      skipped = this.factory.createPreparedPacket(ProtocolVersion.MINIMUM_VERSION, ProtocolVersion.MAXIMUM_VERSION)
+          .prepare(packet)
+          .build();
+    } finally {
+      packet.release();
+    }
+
+    EnumSet<ProtocolVersion> versions = EnumSet.range(ProtocolVersion.MINIMUM_VERSION, ProtocolVersion.MAXIMUM_VERSION);
+    assertTrue(this.metrics.getPreparedVersions() < versions.size(), "No version was skipped");
+    this.factory.setMetrics(null);
+
+    PreparedPacket encoded = this.factory.createPreparedPacket(ProtocolVersion.MINIMUM_VERSION, ProtocolVersion.MAXIMUM_VERSION)
+        .prepare((version) -> TestPackets.createPacket(this.payload))
+        .build();
+    try {
+      for (ProtocolVersion version : versions) {
+        assertArrayEquals(ByteBufUtil.getBytes(encoded.getPackets(version)), ByteBufUtil.getBytes(skipped.getPackets(version)),
+            version.toString());
+        assertArrayEquals(ByteBufUtil.getBytes(encoded.getUncompressedPackets(version)), ByteBufUtil.getBytes(skipped.getUncompressedPackets(version)),
+            version.toString());
+      }
+    } finally {
+      skipped.release();
+      encoded.release();
+    }
+  }
+}
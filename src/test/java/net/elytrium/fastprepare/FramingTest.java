@@ -0,0 +1,259 @@
+/*
+ * Copyright (C) 2021 - 2023 Elytrium
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.elytrium.fastprepare;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+import com.velocitypowered.api.network.ProtocolVersion;
+import com.velocitypowered.natives.util.Natives;
+import com.velocitypowered.proxy.protocol.ProtocolUtils;
+import com.velocitypowered.proxy.protocol.StateRegistry;
+import com.velocitypowered.proxy.protocol.netty.MinecraftCompressorAndLengthEncoder;
+import com.velocitypowered.proxy.protocol.netty.MinecraftEncoder;
+import com.velocitypowered.proxy.protocol.netty.MinecraftVarintLengthEncoder;
+import com.velocitypowered.proxy.protocol.packet.PluginMessage;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.embedded.EmbeddedChannel;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.MethodSource;
+
+// FastPrepare frames batches and fused writes by itself, so their output is compared byte by byte
+// with what Velocity's own encoders produce for the same packets.
+class FramingTest {
+
+  // Packet data lengths around the compression threshold and around the varint size boundaries.
+  private static final int[] DATA_LENGTHS = {
+      1, 127, 128, TestPackets.COMPRESSION_THRESHOLD - 1, TestPackets.COMPRESSION_THRESHOLD,
+      TestPackets.COMPRESSION_THRESHOLD + 1, TestPackets.COMPRESSION_THRESHOLD * 64
+  };
+
+  private PreparedPacketFactory factory;
+  private final List<ByteBuf> payloads = new ArrayList<>(DATA_LENGTHS.length);
+
+  static ProtocolVersion[] versions() {
+    return new ProtocolVersion[] {
+        ProtocolVersion.MINECRAFT_1_7_2, ProtocolVersion.MINECRAFT_1_8, ProtocolVersion.MINECRAFT_1_12_2, ProtocolVersion.MAXIMUM_VERSION
+    };
+  }
+
+  @BeforeEach
+  void setUp() {
+    this.factory = TestPackets.createFactory(true, true);
+  }
+
+  @AfterEach
+  void tearDown() {
+    for (ByteBuf payload : this.payloads) {
+      payload.release();
+    }
+
+    this.payloads.clear();
+    this.factory.releaseThread(Thread.currentThread());
+  }
+
+  @ParameterizedTest
+  @MethodSource("versions")
+  void testEncodeFramed(ProtocolVersion version) {
+    this.createPayloads(version);
+    for (boolean enableCompression : new boolean[] {true, false}) {
+      for (ByteBuf payload : this.payloads) {
+        byte[] expected = encodeWithVelocity(payload, version, this.factory.shouldCompress(version, enableCompression));
+        PluginMessage packet = TestPackets.createPacket(payload);
+        ByteBuf framed;
+        try {
+          framed = this.factory.encodeFramed(packet, version, enableCompression, TestPackets.ALLOCATOR);
+        } finally {
+          packet.release();
+        }
+
+        assertArrayEquals(expected, TestPackets.getBytesAndRelease(framed),
+            String.format("compression %s, payload of %d bytes", enableCompression, payload.readableBytes()));
+      }
+    }
+  }
+
+  @ParameterizedTest
+  @MethodSource("versions")
+  void testEncodeBatch(ProtocolVersion version) {
+    this.createPayloads(version);
+    for (boolean enableCompression : new boolean[] {true, false}) {
+      ByteArrayOutputStream expected = new ByteArrayOutputStream();
+      for (ByteBuf payload : this.payloads) {
+        expected.writeBytes(encodeWithVelocity(payload, version, this.factory.shouldCompress(version, enableCompression)));
+      }
+
+      List<PluginMessage> packets = this.createPackets();
+      ByteBuf framed;
+      try {
+        framed = this.factory.encodeBatch(packets, version, enableCompression, TestPackets.ALLOCATOR);
+      } finally {
+        releasePackets(packets);
+      }
+
+      assertArrayEquals(expected.toByteArray(), TestPackets.getBytesAndRelease(framed), "compression " + enableCompression);
+    }
+  }
+
+  @ParameterizedTest
+  @MethodSource("versions")
+  void testEncodeWithUncompressed(ProtocolVersion version) {
+    this.createPayloads(version);
+    ByteArrayOutputStream expectedBatch = new ByteArrayOutputStream();
+    ByteArrayOutputStream expectedUncompressedBatch = new ByteArrayOutputStream();
+    for (ByteBuf payload : this.payloads) {
+      byte[] expected = encodeWithVelocity(payload, version, this.factory.shouldCompress(version, true));
+      byte[] expectedUncompressed = encodeWithVelocity(payload, version, false);
+      expectedBatch.writeBytes(expected);
+      expectedUncompressedBatch.writeBytes(expectedUncompressed);
+
+      PluginMessage packet = TestPackets.createPacket(payload);
+      ByteBuf[] framed;
+      try {
+        framed = this.factory.encodeSingleWithUncompressed(packet, version);
+      } finally {
+        packet.release();
+      }
+
+      String message = String.format("payload of %d bytes", payload.readableBytes());
+      assertArrayEquals(expected, TestPackets.getBytesAndRelease(framed[0]), message);
+      assertArrayEquals(expectedUncompressed, TestPackets.getBytesAndRelease(framed[1]), message);
+    }
+
+    List<PluginMessage> packets = this.createPackets();
+    ByteBuf[] framed;
+    try {
+      framed = this.factory.encodeBatchWithUncompressed(packets, version);
+    } finally {
+      releasePackets(packets);
+    }
+
+    assertArrayEquals(expectedBatch.toByteArray(), TestPackets.getBytesAndRelease(framed[0]));
+    assertArrayEquals(expectedUncompressedBatch.toByteArray(), TestPackets.getBytesAndRelease(framed[1]));
+  }
+
+  // Compressors created before the update should follow it, so that every path agrees on the threshold.
+  @ParameterizedTest
+  @MethodSource("versions")
+  void testUpdatedThreshold(ProtocolVersion version) {
+    this.createPayloads(version);
+    List<PluginMessage> packets = this.createPackets();
+    try {
+      this.factory.encodeBatch(packets, version, TestPackets.ALLOCATOR).release();
+    } finally {
+      releasePackets(packets);
+    }
+
+    int threshold = TestPackets.COMPRESSION_THRESHOLD / 2;
+    this.factory.updateCompressor(true, TestPackets.COMPRESSION_LEVEL, threshold, true);
+    boolean compress = this.factory.shouldCompress(version, true);
+    ByteArrayOutputStream expectedBatch = new ByteArrayOutputStream();
+    for (ByteBuf payload : this.payloads) {
+      byte[] expected = encodeWithVelocity(payload, version, compress, threshold);
+      expectedBatch.writeBytes(expected);
+
+      PluginMessage packet = TestPackets.createPacket(payload);
+      ByteBuf framed;
+      ByteBuf single;
+      try {
+        framed = this.factory.encodeFramed(packet, version, true, TestPackets.ALLOCATOR);
+        single = this.factory.encodeSingle(packet, version, TestPackets.ALLOCATOR);
+      } finally {
+        packet.release();
+      }
+
+      String message = String.format("payload of %d bytes", payload.readableBytes());
+      assertArrayEquals(expected, TestPackets.getBytesAndRelease(framed), message);
+      assertArrayEquals(expected, TestPackets.getBytesAndRelease(single), message);
+    }
+
+    packets = this.createPackets();
+    ByteBuf framed;
+    try {
+      framed = this.factory.encodeBatch(packets, version, TestPackets.ALLOCATOR);
+    } finally {
+      releasePackets(packets);
+    }
+
+    assertArrayEquals(expectedBatch.toByteArray(), TestPackets.getBytesAndRelease(framed));
+  }
+
+  static byte[] encodeWithVelocity(ByteBuf payload, ProtocolVersion version, boolean compress) {
+    return encodeWithVelocity(payload, version, compress, TestPackets.COMPRESSION_THRESHOLD);
+  }
+
+  // Frames the packet the way a Velocity connection does, with the encoders Velocity puts into the pipeline.
+  static byte[] encodeWithVelocity(ByteBuf payload, ProtocolVersion version, boolean compress, int threshold) {
+    MinecraftEncoder minecraftEncoder = new MinecraftEncoder(ProtocolUtils.Direction.CLIENTBOUND);
+    minecraftEncoder.setProtocolVersion(version);
+    minecraftEncoder.setState(StateRegistry.PLAY);
+    ChannelHandler frameEncoder = MinecraftVarintLengthEncoder.INSTANCE;
+    if (compress) {
+      frameEncoder = new MinecraftCompressorAndLengthEncoder(threshold,
+          Natives.compress.get().create(TestPackets.COMPRESSION_LEVEL));
+    }
+
+    EmbeddedChannel channel = new EmbeddedChannel(frameEncoder, minecraftEncoder);
+    try {
+      // MinecraftEncoder releases the packet itself.
+      channel.writeOutbound(TestPackets.createPacket(payload));
+      return TestPackets.getBytesAndRelease(channel.readOutbound());
+    } finally {
+      channel.finishAndReleaseAll();
+    }
+  }
+
+  // Picks the payload sizes so that the packet data (id and body) has exactly the given lengths.
+  private void createPayloads(ProtocolVersion version) {
+    ByteBuf empty = TestPackets.ALLOCATOR.directBuffer(0);
+    PluginMessage packet = TestPackets.createPacket(empty);
+    int overhead;
+    try {
+      ByteBuf packetData = this.factory.encodePacketData(packet, version, false, TestPackets.ALLOCATOR);
+      overhead = packetData.readableBytes();
+      packetData.release();
+    } finally {
+      packet.release();
+      empty.release();
+    }
+
+    for (int dataLength : DATA_LENGTHS) {
+      this.payloads.add(TestPackets.createPayload(Math.max(dataLength - overhead, 0)));
+    }
+  }
+
+  private List<PluginMessage> createPackets() {
+    List<PluginMessage> packets = new ArrayList<>(this.payloads.size());
+    for (ByteBuf payload : this.payloads) {
+      packets.add(TestPackets.createPacket(payload));
+    }
+
+    return packets;
+  }
+
+  private static void releasePackets(List<PluginMessage> packets) {
+    for (PluginMessage packet : packets) {
+      packet.release();
+    }
+  }
+}
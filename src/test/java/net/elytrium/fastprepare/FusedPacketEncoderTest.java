@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2021 - 2023 Elytrium
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.elytrium.fastprepare;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import com.velocitypowered.api.network.ProtocolVersion;
+import com.velocitypowered.proxy.network.Connections;
+import com.velocitypowered.proxy.protocol.ProtocolUtils;
+import com.velocitypowered.proxy.protocol.StateRegistry;
+import com.velocitypowered.proxy.protocol.netty.MinecraftEncoder;
+import com.velocitypowered.proxy.protocol.netty.MinecraftVarintLengthEncoder;
+import com.velocitypowered.proxy.protocol.packet.PluginMessage;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.embedded.EmbeddedChannel;
+import net.elytrium.fastprepare.handler.FusedPacketEncoder;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+// Packets the fused encoder can't frame itself should still be framed exactly once, and stay owned by the caller.
+class FusedPacketEncoderTest {
+
+  private static final ProtocolVersion VERSION = ProtocolVersion.MAXIMUM_VERSION;
+
+  private PreparedPacketFactory factory;
+  private ByteBuf payload;
+
+  @BeforeEach
+  void setUp() {
+    this.factory = TestPackets.createFactory(true, false);
+    this.payload = TestPackets.createPayload(TestPackets.COMPRESSION_THRESHOLD * 4);
+  }
+
+  @AfterEach
+  void tearDown() {
+    this.payload.release();
+    this.factory.releaseThread(Thread.currentThread());
+  }
+
+  @Test
+  void testFramesWithoutFrameEncoder() {
+    EmbeddedChannel channel = new EmbeddedChannel(new FusedPacketEncoder(this.factory, VERSION, false));
+    this.checkWrite(channel, FramingTest.encodeWithVelocity(this.payload, VERSION, true));
+  }
+
+  @Test
+  void testPassesToVelocityWhenCompressionDiffers() {
+    // The factory expects compression, while the connection isn't compressed yet.
+    EmbeddedChannel channel = new EmbeddedChannel();
+    MinecraftEncoder minecraftEncoder = new MinecraftEncoder(ProtocolUtils.Direction.CLIENTBOUND);
+    minecraftEncoder.setProtocolVersion(VERSION);
+    minecraftEncoder.setState(StateRegistry.PLAY);
+    channel.pipeline().addLast(Connections.FRAME_ENCODER, MinecraftVarintLengthEncoder.INSTANCE);
+    channel.pipeline().addLast(Connections.MINECRAFT_ENCODER, minecraftEncoder);
+    channel.pipeline().addLast(new FusedPacketEncoder(this.factory, VERSION, false));
+    this.checkWrite(channel, FramingTest.encodeWithVelocity(this.payload, VERSION, false));
+  }
+
+  private void checkWrite(EmbeddedChannel channel, byte[] expected) {
+    // Own copy of the payload, as duplicates share the reference count of the payload.
+    PluginMessage packet = new PluginMessage(TestPackets.CHANNEL, this.payload.copy());
+    try {
+      channel.writeAndFlush(packet);
+      assertEquals(1, packet.refCnt(), "Packet was released by the encoders");
+      assertArrayEquals(expected, TestPackets.getBytesAndRelease(channel.readOutbound()));
+    } finally {
+      packet.release();
+      channel.finishAndReleaseAll();
+    }
+  }
+}
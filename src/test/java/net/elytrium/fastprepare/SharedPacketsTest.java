@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2021 - 2023 Elytrium
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.elytrium.fastprepare;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.velocitypowered.api.network.ProtocolVersion;
+import com.velocitypowered.proxy.protocol.StateRegistry;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+// Shared packets are built once however many threads request them, and every reference handed out is either owned by a caller or released.
+class SharedPacketsTest {
+
+  private static final Object KEY = "join";
+  private static final int CALLERS = 16;
+
+  private final AtomicInteger builds = new AtomicInteger();
+  private PreparedPacketFactory factory;
+  private ExecutorService executor;
+  // Pauses the release of the packets built from now on right before their entry is dropped.
+  private volatile CountDownLatch releaseGate;
+
+  @BeforeEach
+  void setUp() {
+    this.factory = new PreparedPacketFactory(GatedPacket::new, StateRegistry.PLAY, true,
+        TestPackets.COMPRESSION_LEVEL, TestPackets.COMPRESSION_THRESHOLD, false, TestPackets.ALLOCATOR);
+    this.executor = Executors.newFixedThreadPool(CALLERS);
+  }
+
+  @AfterEach
+  void tearDown() throws InterruptedException {
+    this.executor.shutdownNow();
+    assertTrue(this.executor.awaitTermination(10, TimeUnit.SECONDS));
+  }
+
+  @Test
+  void testSingleFlight() throws Exception {
+    CountDownLatch building = new CountDownLatch(1);
+    Supplier<PreparedPacket> builder = this.builder(building);
+    List<Future<PreparedPacket>> syncResults = new ArrayList<>();
+    List<CompletableFuture<PreparedPacket>> asyncResults = new ArrayList<>();
+    for (int i = 0; i < CALLERS / 2; i++) {
+      syncResults.add(this.executor.submit(() -> this.factory.getOrPrepare(KEY, builder)));
+      asyncResults.add(this.factory.getOrPrepareAsync(KEY, builder, this.executor));
+    }
+
+    building.countDown();
+    PreparedPacket packet = asyncResults.get(0).get(10, TimeUnit.SECONDS);
+    for (Future<PreparedPacket> result : syncResults) {
+      assertSame(packet, result.get(10, TimeUnit.SECONDS));
+    }
+
+    for (CompletableFuture<PreparedPacket> result : asyncResults) {
+      assertSame(packet, result.get(10, TimeUnit.SECONDS));
+    }
+
+    assertEquals(1, this.builds.get());
+    assertEquals(CALLERS, packet.refCnt());
+    for (int i = 0; i < CALLERS; i++) {
+      packet.release();
+    }
+
+    assertEquals(0, this.factory.getSharedPacketCount());
+  }
+
+  @Test
+  void testRetryAfterReleaseRace() throws Exception {
+    CountDownLatch gate = new CountDownLatch(1);
+    this.releaseGate = gate;
+    PreparedPacket first = this.factory.getOrPrepare(KEY, this.builder(null));
+    this.releaseGate = null;
+
+    // The last reference is gone, but the entry is still there while the release is paused.
+    Future<?> release = this.executor.submit(first::release);
+    assertTrue(((GatedPacket) first).released.await(10, TimeUnit.SECONDS));
+    assertEquals(0, first.refCnt());
+    assertEquals(1, this.factory.getSharedPacketCount());
+
+    PreparedPacket second = this.factory.getOrPrepare(KEY, this.builder(null));
+    PreparedPacket third = this.factory.getOrPrepareAsync(KEY, this.builder(null), this.executor).get(10, TimeUnit.SECONDS);
+    assertNotSame(first, second);
+    assertSame(second, third);
+    assertEquals(2, this.builds.get());
+
+    // The paused release drops only its own entry.
+    gate.countDown();
+    release.get(10, TimeUnit.SECONDS);
+    assertEquals(1, this.factory.getSharedPacketCount());
+    second.release();
+    third.release();
+    assertEquals(0, this.factory.getSharedPacketCount());
+  }
+
+  @Test
+  void testFailurePropagation() throws Exception {
+    CountDownLatch building = new CountDownLatch(1);
+    IllegalStateException failure = new IllegalStateException("Expected failure");
+    Supplier<PreparedPacket> builder = () -> {
+      this.builds.incrementAndGet();
+      await(building);
+      throw failure;
+    };
+
+    CompletableFuture<PreparedPacket> creator = this.factory.getOrPrepareAsync(KEY, builder, this.executor);
+    CompletableFuture<PreparedPacket> waiter = this.factory.getOrPrepareAsync(KEY, builder, this.executor);
+    building.countDown();
+
+    assertSame(failure, assertThrows(ExecutionException.class, () -> creator.get(10, TimeUnit.SECONDS)).getCause());
+    assertSame(failure, assertThrows(ExecutionException.class, () -> waiter.get(10, TimeUnit.SECONDS)).getCause());
+    assertEquals(1, this.builds.get());
+    assertEquals(0, this.factory.getSharedPacketCount());
+
+    // The failure isn't cached, the next caller builds the packet again.
+    assertSame(failure, assertThrows(IllegalStateException.class, () -> this.factory.getOrPrepare(KEY, builder)));
+    PreparedPacket packet = this.factory.getOrPrepare(KEY, this.builder(null));
+    assertEquals(3, this.builds.get());
+    packet.release();
+  }
+
+  @Test
+  void testCancelledFutureReleasesReference() throws Exception {
+    CountDownLatch building = new CountDownLatch(1);
+    CompletableFuture<PreparedPacket> creator = this.factory.getOrPrepareAsync(KEY, this.builder(building), this.executor);
+    CompletableFuture<PreparedPacket> waiter = this.factory.getOrPrepareAsync(KEY, this.builder(null), this.executor);
+    CompletableFuture<PreparedPacket> kept = this.factory.getOrPrepareAsync(KEY, this.builder(null), this.executor);
+    creator.cancel(false);
+    waiter.orTimeout(1, TimeUnit.MILLISECONDS);
+    assertThrows(ExecutionException.class, () -> waiter.get(10, TimeUnit.SECONDS));
+    building.countDown();
+
+    PreparedPacket packet = kept.get(10, TimeUnit.SECONDS);
+    // References are handed out by the thread that completes the build.
+    this.executor.shutdown();
+    assertTrue(this.executor.awaitTermination(10, TimeUnit.SECONDS));
+    assertEquals(1, packet.refCnt(), "References of the cancelled futures are orphaned");
+    packet.release();
+    assertEquals(0, this.factory.getSharedPacketCount());
+  }
+
+  private Supplier<PreparedPacket> builder(CountDownLatch building) {
+    return () -> {
+      this.builds.incrementAndGet();
+      if (building != null) {
+        await(building);
+      }
+
+      return this.factory.createPreparedPacket(ProtocolVersion.MINIMUM_VERSION, ProtocolVersion.MAXIMUM_VERSION).build();
+    };
+  }
+
+  private static void await(CountDownLatch latch) {
+    try {
+      if (!latch.await(10, TimeUnit.SECONDS)) {
+        throw new IllegalStateException("Latch timed out");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private class GatedPacket extends PreparedPacket {
+
+    private final CountDownLatch gate = SharedPacketsTest.this.releaseGate;
+    private final CountDownLatch released = new CountDownLatch(1);
+
+    GatedPacket(ProtocolVersion minVersion, ProtocolVersion maxVersion, PreparedPacketFactory factory) {
+      super(minVersion, maxVersion, factory);
+    }
+
+    @Override
+    void setReleaseListener(Runnable releaseListener) {
+      super.setReleaseListener(() -> {
+        this.released.countDown();
+        if (this.gate != null) {
+          await(this.gate);
+        }
+
+        releaseListener.run();
+      });
+    }
+  }
+}